@@ -0,0 +1,80 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes small repository files so that a crash leaves either the old or the
+ * new contents, never a mix. The contents go to a temporary file in the same
+ * directory, which is then renamed over the destination.
+ */
+public class AtomicFile {
+	// Prefix of the temporary files, left behind only by a crash
+	public static final String TEMP_PREFIX = "tmp-";
+
+	/**
+	 * Replaces the contents of dest. If force is set the contents are on disk
+	 * before they are renamed into place.
+	 */
+	public static void write(File dest, byte[] contents, boolean force)
+			throws IOException {
+		File dir = dest.getAbsoluteFile().getParentFile();
+		File tmp = File.createTempFile(TEMP_PREFIX, ".tmp", dir);
+		try {
+			FileChannel ch = FileChannel.open(tmp.toPath(),
+					StandardOpenOption.WRITE);
+			try {
+				ByteBuffer buf = ByteBuffer.wrap(contents);
+				while (buf.hasRemaining()) {
+					ch.write(buf);
+				}
+				if (force) {
+					ch.force(true);
+				}
+			} finally {
+				ch.close();
+			}
+			Files.move(tmp.toPath(), dest.toPath(),
+					StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			tmp.delete(); // Only left if the move failed
+		}
+	}
+
+	/**
+	 * Forces the entries of a directory, such as files just renamed into it,
+	 * to disk. Platforms that cannot open a directory are left to their own
+	 * guarantees.
+	 */
+	public static void syncDirectory(File dir) {
+		try {
+			FileChannel ch = FileChannel.open(dir.toPath(),
+					StandardOpenOption.READ);
+			try {
+				ch.force(true);
+			} finally {
+				ch.close();
+			}
+		} catch (IOException e) {
+			// Not supported here
+		}
+	}
+
+	/**
+	 * Deletes the temporary files a crash left in dir. Only safe while no
+	 * other process writes there, that is while holding the repository lock.
+	 */
+	public static void deleteLeftovers(File dir) {
+		File[] entries = dir.listFiles();
+		if (entries == null)
+			return;
+		for (File f : entries) {
+			if (f.isFile() && f.getName().startsWith(TEMP_PREFIX)) {
+				f.delete();
+			}
+		}
+	}
+}
@@ -0,0 +1,97 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An in memory cache of decompressed blob contents, shared by everything in
+ * the process. It holds at most a fixed number of bytes and evicts the least
+ * recently used blobs first. Only blobs named by their hash are cached, and
+ * those never change, so entries never go stale. It pays off in long lived processes (batch mode, the daemon) and in
+ * merge and rebase, which read the same blobs several times.
+ *
+ * The budget is set with -Dgitlet.blobCacheBytes=N (default 64 MB); a blob
+ * larger than a quarter of the budget is never cached.
+ */
+public class BlobCache {
+	private static final long DEFAULT_BUDGET = 64L * 1024 * 1024;
+	private static final BlobCache INSTANCE = new BlobCache(Long.getLong(
+			"gitlet.blobCacheBytes", DEFAULT_BUDGET));
+
+	private final long budget;
+	private final LinkedHashMap<String, byte[]> entries = new LinkedHashMap<String, byte[]>(
+			16, 0.75f, true); // Iterates from least recently used
+	private long bytes = 0;
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+
+	/**
+	 * Construct a cache holding at most budget bytes
+	 */
+	public BlobCache(long budget) {
+		this.budget = Math.max(0, budget);
+	}
+
+	/**
+	 * Access the cache of this process
+	 */
+	public static BlobCache getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Returns true if contents of the given size would be cached
+	 */
+	public boolean accepts(long size) {
+		return size <= budget / 4;
+	}
+
+	/**
+	 * Returns the cached contents for key, or null. The array must not be
+	 * modified.
+	 */
+	public synchronized byte[] get(String key) {
+		byte[] contents = entries.get(key);
+		if (contents == null) {
+			++misses;
+		} else {
+			++hits;
+		}
+		return contents;
+	}
+
+	/**
+	 * Caches the contents under key, evicting the least recently used
+	 * entries to stay within the budget
+	 */
+	public synchronized void put(String key, byte[] contents) {
+		if (!accepts(contents.length))
+			return;
+		byte[] previous = entries.put(key, contents);
+		if (previous != null)
+			bytes -= previous.length;
+		bytes += contents.length;
+		Iterator<Map.Entry<String, byte[]>> it = entries.entrySet()
+				.iterator();
+		while ((bytes > budget) && it.hasNext()) {
+			bytes -= it.next().getValue().length;
+			it.remove();
+			++evictions;
+		}
+	}
+
+	/**
+	 * Prints the hit and miss counts and the memory used
+	 */
+	public synchronized void printStats() {
+		long lookups = hits + misses;
+		System.out.println("=== Blob Cache ===");
+		System.out.println("Hits: " + hits);
+		System.out.println("Misses: " + misses);
+		System.out.println("Hit rate: "
+				+ ((lookups == 0) ? 0 : (100 * hits / lookups)) + "%");
+		System.out.println("Evictions: " + evictions);
+		System.out.println("Blobs: " + entries.size());
+		System.out.println("Bytes: " + bytes + " of " + budget);
+	}
+}
@@ -1,7 +1,13 @@
+import java.io.File;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 
 /**
- * Represents a Branch.
+ * Represents a Branch. The head of a branch is kept in the RefStore of its
+ * tree and its staged files in the StagingIndex, so a Branch is only a name
+ * to look them up by.
  *
  */
 public class Branch implements Serializable {
@@ -10,17 +16,27 @@ public class Branch implements Serializable {
 	private CommitTree parentTree = null; // Every branch has a reference to the
 											// parent tree
 	private String name = ""; // Name of the branch
+	// Only read from trees saved before the ref store, see CommitTree.getRefs
 	private CommitNode head = null;
 	private CommitNode inProgressCommit = null; // The currently progressing
 												// commit in this branch
+	// Store of the head, if not the tree's branches, as for fetched ones
+	private transient RefStore refs = null;
 
 	/**
 	 * Construct a branch
 	 */
-	public Branch(String name, CommitTree parent, CommitNode headNode) {
+	public Branch(String name, CommitTree parent) {
 		this.name = name;
 		this.parentTree = parent;
-		this.head = headNode;
+	}
+
+	/**
+	 * Construct a branch whose head is kept in the given store
+	 */
+	public Branch(String name, CommitTree parent, RefStore refs) {
+		this(name, parent);
+		this.refs = refs;
 	}
 
 	/**
@@ -34,24 +50,51 @@ public class Branch implements Serializable {
 	 * Access head node of branch
 	 */
 	public CommitNode getHead() {
-		return this.head;
+		return parentTree.getCommit(this.getRefs().resolve(this.name));
 	}
 
 	/**
 	 * Change the head of the branch to newHead
 	 */
 	public void setHead(CommitNode newHead) {
-		this.head = newHead;
+		this.getRefs().update(this.name, newHead.getCommitId());
+	}
+
+	/**
+	 * The store that keeps the head
+	 */
+	private RefStore getRefs() {
+		return (this.refs != null) ? this.refs : parentTree.getRefs();
+	}
+
+	/**
+	 * Access the head saved in a tree written before the ref store
+	 */
+	public CommitNode getLegacyHead() {
+		return this.head;
 	}
 
 	/**
-	 * Print each commit's commitLog in branch
+	 * Access the in progress commit saved in a tree written before the ref
+	 * store
+	 */
+	public CommitNode getLegacyInProgressCommit() {
+		return this.inProgressCommit;
+	}
+
+	/**
+	 * Print each commit's commitLog in branch, and where a shallow clone's
+	 * history stops
 	 */
 	public void printCommitLog() {
-		CommitNode cnode = this.head;
+		CommitNode cnode = this.getHead();
 		while (cnode != null) {
 			cnode.printLog();
 			System.out.println();
+			if (cnode.isShallow()) {
+				System.out.println("(shallow: older commits were not cloned)");
+				System.out.println();
+			}
 			cnode = cnode.getParent();
 		}
 	}
@@ -60,14 +103,22 @@ public class Branch implements Serializable {
 	 * Checkout from branch's head
 	 */
 	public boolean checkout() {
-		return this.head.checkout();
+		return this.getHead().checkout();
+	}
+
+	/**
+	 * Checkout from branch's head over the working directory of current,
+	 * writing only the files that differ
+	 */
+	public boolean checkout(CommitNode current) {
+		return this.getHead().checkout(current);
 	}
 
 	/**
 	 * Checkout from head with parameter fileName
 	 */
 	public boolean checkout(String fileName) {
-		return this.head.checkout(fileName);
+		return this.getHead().checkout(fileName);
 	}
 
 	/**
@@ -92,54 +143,99 @@ public class Branch implements Serializable {
 	 * Precondition: The file with 'fileName' exists
 	 */
 	public void add(String fileName) {
-		// If there is no inProgressCommit, initialize it.
-		if (this.inProgressCommit == null) {
-			// Create a new in progress commit node from the current branch's
-			// head node
-			this.inProgressCommit = new CommitNode(this.head,
-					parentTree.getNextCommitId());
+		this.add(Collections.singletonList(fileName), true);
+	}
+
+	/**
+	 * Stages many files to a new Commit in one pass. Files that were not
+	 * modified are skipped silently. Precondition: The files exist
+	 */
+	public void add(Collection<String> fileNames) {
+		this.add(fileNames, false);
+	}
+
+	/**
+	 * Stores the modified files and stages them in the staging index. A file
+	 * whose timestamp matches the committed version is not modified, and is
+	 * reported only if reportUnmodified is set. A file already staged with
+	 * its current size and timestamp is not stored again.
+	 */
+	private void add(Collection<String> fileNames, boolean reportUnmodified) {
+		StagingIndex index = parentTree.getStagingIndex();
+		CommitNode head = this.getHead();
+		ArrayList<String> toStore = new ArrayList<String>();
+		for (String fileName : fileNames) {
+			File theNewFile = new File(fileName);
+			String absFileName = theNewFile.getAbsolutePath();
+			StoredFile staged = index.get(this.name, absFileName);
+			if ((staged != null) && staged.isUnmodified()) {
+				continue; // Staged as it is
+			}
+			StoredFile old = head.findFile(absFileName);
+			if ((old != null)
+					&& (theNewFile.lastModified() == old.getLastModified())) {
+				// The file is not modified. Drop what was staged for it.
+				if (index.contains(this.name, absFileName)) {
+					index.unstage(this.name, absFileName);
+				}
+				if (reportUnmodified) {
+					System.out
+							.println("File has not been modified since the last commit.");
+				}
+			} else {
+				toStore.add(absFileName);
+			}
 		}
-		// Add this file
-		this.inProgressCommit.addFile(fileName);
+		index.add(this.name, toStore);
+	}
+
+	/**
+	 * Stages an already stored version of a file to a new Commit, as done by
+	 * merge.
+	 */
+	public void add(StoredFile fInfo) {
+		parentTree.getStagingIndex().add(this.name, fInfo);
 	}
 
 	/**
-	 * Saves the files.
+	 * Saves the staged files as a new commit on top of the head
 	 */
 	public void commit(String msg) {
-		if (inProgressCommit == null) {
+		StagingIndex index = parentTree.getStagingIndex();
+		if (index.isEmpty(this.name)) {
 			System.out.println("No changes added to the commit.");
 			return;
 		}
-		if (inProgressCommit.commitFiles(parentTree.getRepositoryParentDir(),
-				msg, this.parentTree)) { // To generate unique file names
-			// Move the head pointer in the current branch
-			this.head = inProgressCommit;
-			inProgressCommit = null;
-			parentTree.recordCommit(this.head);
-		}
+		CommitNode cnode = new CommitNode(this.getHead(),
+				parentTree.getNextCommitId());
+		cnode.commitFiles(index.getAdded(this.name).values(),
+				index.getRemoved(this.name), msg);
+		// Move the head pointer in the current branch
+		this.setHead(cnode);
+		index.clear(this.name);
+		parentTree.recordCommit(cnode);
 	}
 
 	/**
-	 * remove file from inProgressCommit with that file
+	 * Marks a committed file for removal. Also unstages it, if it is staged.
 	 */
 	public void remove(String fileName) {
-		if (inProgressCommit == null) {
-			// Create a new in progress commit node from the current branch's
-			// head node
-			this.inProgressCommit = new CommitNode(this.head,
-					parentTree.getNextCommitId());
+		StagingIndex index = parentTree.getStagingIndex();
+		String absFileName = new File(fileName).getAbsolutePath();
+		if (this.getHead().findFile(absFileName) != null) {
+			index.remove(this.name, absFileName);
+		} else if (index.contains(this.name, absFileName)) {
+			index.unstage(this.name, absFileName);
 		}
-		// Remove this file
-		this.inProgressCommit.removeFile(fileName);
 	}
 
 	/**
 	 * print files that are to be added
 	 */
 	public void printStagedFiles() {
-		if (this.inProgressCommit != null) {
-			this.inProgressCommit.printFilesToAdd();
+		StagingIndex index = parentTree.getStagingIndex();
+		for (String fn : index.getAdded(this.name).keySet()) {
+			System.out.println(this.displayName(fn));
 		}
 	}
 
@@ -147,8 +243,17 @@ public class Branch implements Serializable {
 	 * print files that are to be removed
 	 */
 	public void showFilesMarkedForRemoval() {
-		if (this.inProgressCommit != null) {
-			this.inProgressCommit.printFilesToRemove();
+		StagingIndex index = parentTree.getStagingIndex();
+		for (String fn : index.getRemoved(this.name)) {
+			System.out.println(this.displayName(fn));
 		}
 	}
+
+	/**
+	 * The name of a file as typed by the user, relative to the repository
+	 */
+	private String displayName(String absFileName) {
+		return CommitNode.relativeName(absFileName,
+				parentTree.getRepositoryParentDir());
+	}
 }
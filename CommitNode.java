@@ -1,10 +1,15 @@
 import java.io.File;
 import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 
 /**
  * This class represents a CommitNode.
@@ -13,6 +18,8 @@ import java.util.TreeSet;
 public class CommitNode implements Serializable {
 	private static final long serialVersionUID = 1L;
 	private long id; // Commit id
+	// Id of the commit that is the same in every repository, see computeUid
+	private String uid;
 	private String msg = ""; // Commit message
 	private Date time; // Commit date and time
 
@@ -20,11 +27,27 @@ public class CommitNode implements Serializable {
 	private ArrayList<StoredFile> oldFiles = new ArrayList<StoredFile>();
 	private ArrayList<StoredFile> addedFiles = new ArrayList<StoredFile>();
 	private ArrayList<String> deletedFiles = new ArrayList<String>();
+	// Files staged in in progress commits saved before the StagingIndex
 	// HashMap of <absolute file name, user typed file name>
-	private HashMap<String, String> toAdd = new HashMap<String, String>();
+	private HashMap<String, String> toAdd;
 	// HashMap of <absolute file name, user typed file name>
-	private HashMap<String, String> toRemove = new HashMap<String, String>();
+	private HashMap<String, String> toRemove;
+	// HashMap of <absolute file name, already stored version> staged by merge
+	private HashMap<String, StoredFile> toAddStored;
 	private CommitNode parent; // Parent of this CommitNode
+	// Uid of the parent a shallow clone did not bring, null if there is none
+	private String shallowParentUid;
+	/*
+	 * Number of commits between this one and the closest one, itself
+	 * included, whose oldFiles hold all the inherited files. 0 if oldFiles
+	 * holds them here, as in trees saved before snapshots were spaced out.
+	 */
+	private int deltaDepth = 0;
+	// Files of this commit, kept for commits whose oldFiles are complete
+	private transient TreeMap<String, StoredFile> snapshot;
+
+	// A commit's files are resolved with at most this many sets of changes
+	private static final int SNAPSHOT_INTERVAL = 16;
 
 	private static final SimpleDateFormat dtFormat = new SimpleDateFormat(
 			"yyyy-MM-dd HH:mm:ss");
@@ -39,49 +62,35 @@ public class CommitNode implements Serializable {
 	}
 
 	/**
-	 * Construct commitNode with given parent and commitID
+	 * Construct commitNode with given parent and commitID. Every
+	 * SNAPSHOT_INTERVAL commits the files of the parent are copied into
+	 * oldFiles; the commits in between only hold their own changes.
 	 */
 	public CommitNode(CommitNode parentCommit, long commitId) {
 		this(commitId); // Initialize the CommitNode
 		this.parent = parentCommit;
 
-		// Copy the content from parent
 		if (parentCommit != null) {
-			// Copy the "oldFiles" and the "addedFiles" from parent to node.
-			this.oldFiles.addAll(parentCommit.oldFiles);
-			// Add/replace all added files to the old files list from previous
-			// commit
-			for (StoredFile added : parentCommit.addedFiles) {
-				int pos = StoredFile.getStoredFile(this.oldFiles,
-						added.getOriginalFileName());
-				if (pos != -1) {
-					this.oldFiles.set(pos, added);
-				} else {
-					this.oldFiles.add(added);
-				}
-			}
-			// Delete removed files from the old files list of prev commit
-			for (String deleted : parentCommit.deletedFiles) {
-				int pos = StoredFile.getStoredFile(this.oldFiles, deleted);
-				if (pos != -1) {
-					this.oldFiles.remove(pos);
-				}
+			this.deltaDepth = parentCommit.deltaDepth + 1;
+			if (this.deltaDepth >= SNAPSHOT_INTERVAL) {
+				this.oldFiles.addAll(parentCommit.getSnapshot().values());
+				this.deltaDepth = 0;
 			}
 		}
 	}
 
 	/**
-	 * Access oldFiles
+	 * Access addedFiles
 	 */
-	public ArrayList<StoredFile> getOldFiles() {
-		return oldFiles;
+	public ArrayList<StoredFile> getAddedFiles() {
+		return addedFiles;
 	}
 
 	/**
-	 * Access addedFiles
+	 * Access deletedFiles
 	 */
-	public ArrayList<StoredFile> getAddedFiles() {
-		return addedFiles;
+	public ArrayList<String> getDeletedFiles() {
+		return deletedFiles;
 	}
 
 	/**
@@ -91,6 +100,134 @@ public class CommitNode implements Serializable {
 		return this.id;
 	}
 
+	/**
+	 * Access the id that is the same in every repository. Null until it is
+	 * computed; commits made before it existed compute it when needed.
+	 */
+	public String getUid() {
+		return this.uid;
+	}
+
+	/**
+	 * Computes the id that is the same in every repository: the SHA-1 hash
+	 * of the parent's, the time, the message and the changes, with file
+	 * names relative to repoParent. Received commits keep the id they were
+	 * sent with.
+	 */
+	public String computeUid(String parentUid, String repoParent) {
+		if (this.uid == null) {
+			StringBuilder sb = new StringBuilder();
+			sb.append("parent ").append(parentUid).append('\n');
+			sb.append("time ").append(this.time.getTime()).append('\n');
+			sb.append("message ").append(this.msg).append('\n');
+			TreeMap<String, String> added = new TreeMap<String, String>();
+			for (StoredFile fInfo : this.addedFiles) {
+				added.put(relativeName(fInfo.getOriginalFileName(), repoParent),
+						(fInfo.getContentHash() != null) ? fInfo
+								.getContentHash() : fInfo.getStoredFileName());
+			}
+			for (String fn : added.keySet()) {
+				sb.append("add ").append(fn).append(' ').append(added.get(fn))
+						.append('\n');
+			}
+			for (String fn : new TreeSet<String>(this.deletedFiles)) {
+				sb.append("delete ").append(relativeName(fn, repoParent))
+						.append('\n');
+			}
+			this.uid = ObjectStore.hash(sb.toString().getBytes(
+					StandardCharsets.UTF_8));
+		}
+		return this.uid;
+	}
+
+	/**
+	 * The name of a file relative to the repository's parent directory
+	 */
+	public static String relativeName(String absFileName, String repoParent) {
+		String prefix = repoParent + File.separator;
+		return absFileName.startsWith(prefix) ? absFileName.substring(prefix
+				.length()) : absFileName;
+	}
+
+	/**
+	 * Rebuilds a commit received from another repository on top of parent,
+	 * keeping its uid, time, message and changes
+	 */
+	public static CommitNode received(CommitNode parent, long commitId,
+			String uid, Date time, String commitMsg,
+			Collection<StoredFile> added, Collection<String> deleted) {
+		CommitNode cnode = new CommitNode(parent, commitId);
+		cnode.uid = uid;
+		cnode.time = time;
+		cnode.msg = commitMsg;
+		cnode.addedFiles.addAll(added);
+		cnode.deletedFiles.addAll(deleted);
+		return cnode;
+	}
+
+	/**
+	 * Rebuilds the oldest commit of a shallow clone, whose parent was not
+	 * brought. It holds the files it inherited from that parent in oldFiles,
+	 * so its files, and those of the commits after it, are complete.
+	 */
+	public static CommitNode receivedShallow(long commitId, String uid,
+			String parentUid, Date time, String commitMsg,
+			Collection<StoredFile> inherited, Collection<StoredFile> added,
+			Collection<String> deleted) {
+		CommitNode cnode = received(null, commitId, uid, time, commitMsg,
+				added, deleted);
+		cnode.shallowParentUid = parentUid;
+		cnode.oldFiles.addAll(inherited);
+		return cnode;
+	}
+
+	/**
+	 * Returns true if this commit has a parent that a shallow clone did not
+	 * bring
+	 */
+	public boolean isShallow() {
+		return this.shallowParentUid != null;
+	}
+
+	/**
+	 * Access the uid of the parent a shallow clone did not bring, null if
+	 * there is none
+	 */
+	public String getShallowParentUid() {
+		return this.shallowParentUid;
+	}
+
+	/**
+	 * Returns true if the history of this commit stops at a shallow boundary
+	 */
+	public boolean hasShallowHistory() {
+		CommitNode cnode = this;
+		while (cnode.parent != null) {
+			cnode = cnode.parent;
+		}
+		return cnode.isShallow();
+	}
+
+	/**
+	 * Returns the stored files this commit itself refers to: those it added
+	 * and, if it keeps a full copy of its inherited files, those
+	 */
+	public ArrayList<StoredFile> getStoredFiles() {
+		ArrayList<StoredFile> files = new ArrayList<StoredFile>(this.oldFiles);
+		files.addAll(this.addedFiles);
+		return files;
+	}
+
+	/**
+	 * Returns the files this commit inherited from its parent, or, for the
+	 * oldest commit of a shallow clone, from the parent it does not have
+	 */
+	public Collection<StoredFile> getInheritedFiles() {
+		if (this.parent != null)
+			return this.parent.getSnapshot().values();
+		return this.oldFiles;
+	}
+
 	/**
 	 * Change commit message of commitNode
 	 */
@@ -127,80 +264,61 @@ public class CommitNode implements Serializable {
 	}
 
 	/**
-	 * Documentation is provided on a step-by-step basis within the method
-	 */
-	public void addFile(String fileToAdd) {
-		File theNewFile = new File(fileToAdd);
-		// Delete this file from 'to remove' list, if exists
-		this.toRemove.remove(theNewFile.getAbsolutePath());
-
-		// Check if the file is modified after it was last committed in the
-		// repository (multiple steps)
-		// Step 1. Get the old file details.
-		// (All previously committed files are in the oldFiles array)
-		int pos = StoredFile.getStoredFile(this.oldFiles,
-				theNewFile.getAbsolutePath());
-		// Search in the "oldFiles" list
-		/**
-		 * Step 2. If the file exists in the commit tree, compare the committed
-		 * file timestamp with the new file timestamp in the working directory.
-		 */
-		if ((pos != -1)
-				&& (theNewFile.lastModified() == this.oldFiles.get(pos)
-						.getLastModified())) {
-			// 3. If they match, the file is not modified
-			// display an error.
-			System.out
-					.println("File has not been modified since the last commit.");
-		} else {
-			// This file is to be staged for addition
-			this.toAdd.put(theNewFile.getAbsolutePath(), fileToAdd);
-			// Full file path is stored as key
-		}
+	 * Commit the staged files: the files added are already stored, and the
+	 * files deleted are only named. Then, set commit message.
+	 */
+	public void commitFiles(Collection<StoredFile> added,
+			Collection<String> deleted, String commitMsg) {
+		this.addedFiles.addAll(added);
+		this.deletedFiles.addAll(deleted);
+		this.snapshot = null; // The files of this commit changed
+		// Set the commit message
+		this.msg = commitMsg;
+		this.time = new Date();
 	}
 
 	/**
-	 * Commit files. If they are in toAdd, put them in addedFiles Else, if they
-	 * are in toRemove, put them in deletedFiles Then, set commit message
+	 * Moves the files staged in an in progress commit saved before the
+	 * staging index into the index. Files staged for addition are stored now.
 	 */
-	public boolean commitFiles(String repoLoc, String commitMsg,
-			FileNameGenerator fng) {
-		if ((toAdd.size() == 0) && (toRemove.size() == 0)) {
-			System.out.println("No changes added to the commit.");
-			return false;
+	public void restage(StagingIndex index, String branch) {
+		if (this.toAdd != null) {
+			ArrayList<String> existing = new ArrayList<String>();
+			for (String fn : this.toAdd.keySet()) {
+				if (new File(fn).isFile())
+					existing.add(fn);
+			}
+			index.add(branch, existing);
 		}
-		// Copy each file staged in 'toAdd' list
-		for (String origFileName : toAdd.keySet()) {
-			StoredFile fInfo = new StoredFile(origFileName);
-			// Full file path is stored in StoredFile
-			if (fInfo.storeFile(repoLoc, this.id, fng)) {
-				this.addedFiles.add(fInfo);
+		if (this.toAddStored != null) {
+			for (StoredFile fInfo : this.toAddStored.values()) {
+				index.add(branch, fInfo);
 			}
 		}
-		// Delete each file staged in 'toRemove' list
-		for (String origFileName : toRemove.keySet()) {
-			this.deletedFiles.add(origFileName);
+		if (this.toRemove != null) {
+			for (String fn : this.toRemove.keySet()) {
+				index.remove(branch, fn);
+			}
 		}
-		// Set the commit message
-		this.msg = commitMsg;
-		this.time = new Date();
-		return true;
 	}
 
 	/**
-	 * Removes an old file. Also removes it from staging list, if it is staged.
+	 * Returns the version of the file, given its absolute name, in this
+	 * commit, or null if it has none. Only the changes of the commits since
+	 * the closest one whose oldFiles are complete are looked through.
 	 */
-	public void removeFile(String fileToRemove) {
-		File theFile = new File(fileToRemove);
-		// Does it exist in oldFiles list?
-		int pos = StoredFile.getStoredFile(this.oldFiles,
-				theFile.getAbsolutePath());
-		if (pos != -1) {
-			this.toRemove.put(theFile.getAbsolutePath(), fileToRemove);
-			// Full file path is stored as key
-		} 
-		// If it is staged for addition, remove from the list
-		this.toRemove.remove(fileToRemove);
+	public StoredFile findFile(String absFileName) {
+		CommitNode cnode = this;
+		while ((cnode.deltaDepth > 0) && (cnode.parent != null)) {
+			if (cnode.deletedFiles.contains(absFileName))
+				return null;
+			for (StoredFile fInfo : cnode.addedFiles) {
+				if (fInfo.getOriginalFileName().equals(absFileName))
+					return fInfo;
+			}
+			cnode = cnode.parent;
+		}
+		return cnode.getBaseSnapshot().get(absFileName);
 	}
 
 	/**
@@ -221,20 +339,51 @@ public class CommitNode implements Serializable {
 	}
 
 	/**
-	 * Print all files in toAdd
+	 * Returns the files of this commit as a map of <absolute file name,
+	 * StoredFile>, sorted by file name. The files of the closest commit whose
+	 * oldFiles are complete are combined with the changes of the commits
+	 * after it, at most SNAPSHOT_INTERVAL of them.
+	 */
+	public TreeMap<String, StoredFile> getSnapshot() {
+		ArrayList<CommitNode> deltas = new ArrayList<CommitNode>();
+		CommitNode base = this;
+		while ((base.deltaDepth > 0) && (base.parent != null)) {
+			deltas.add(base);
+			base = base.parent;
+		}
+		TreeMap<String, StoredFile> result = new TreeMap<String, StoredFile>(
+				base.getBaseSnapshot());
+		for (int i = deltas.size() - 1; i >= 0; --i) {
+			deltas.get(i).applyChanges(result);
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the cached files of a commit whose oldFiles are complete,
+	 * building them on first use. The map must not be changed.
 	 */
-	public void printFilesToAdd() {
-		for (String fn : this.toAdd.values()) {
-			System.out.println(fn);
+	private TreeMap<String, StoredFile> getBaseSnapshot() {
+		if (this.snapshot == null) {
+			TreeMap<String, StoredFile> files = new TreeMap<String, StoredFile>();
+			for (StoredFile fInfo : this.oldFiles) {
+				files.put(fInfo.getOriginalFileName(), fInfo);
+			}
+			this.applyChanges(files);
+			this.snapshot = files;
 		}
+		return this.snapshot;
 	}
 
 	/**
-	 * Print all files in toRemove
+	 * Applies the files added and deleted in this commit to files
 	 */
-	public void printFilesToRemove() {
-		for (String fn : this.toRemove.values()) {
-			System.out.println(fn);
+	private void applyChanges(TreeMap<String, StoredFile> files) {
+		for (StoredFile fInfo : this.addedFiles) {
+			files.put(fInfo.getOriginalFileName(), fInfo);
+		}
+		for (String deleted : this.deletedFiles) {
+			files.remove(deleted);
 		}
 	}
 
@@ -242,11 +391,99 @@ public class CommitNode implements Serializable {
 	 * Checks out all files in the node. Restore all oldFiles into StoredFiles
 	 */
 	public boolean checkout() {
-		// Create a new temp node to consolidate actions specified in this node
-		CommitNode consolidated = new CommitNode(this, -1);
-		// This id of -1 is not used.
-		for (StoredFile fInfo : consolidated.oldFiles) {
-			fInfo.restoreFile();
+		return this.checkout((CommitNode) null);
+	}
+
+	/**
+	 * Checks out the node over the working directory of the current commit.
+	 * Only files whose contents differ from the current commit, or that were
+	 * modified in the working directory, are restored. Files of the current
+	 * commit that are not in this node are deleted. If current is null every
+	 * file is restored. Returns false if any file could not be restored.
+	 */
+	public boolean checkout(CommitNode current) {
+		return this.checkout(current,
+				SparseCheckout.load(System.getProperty("user.dir")));
+	}
+
+	/**
+	 * Same as checkout(current), but only files included in the sparse
+	 * checkout are written, deleted or examined.
+	 */
+	public boolean checkout(CommitNode current, SparseCheckout sparse) {
+		TreeMap<String, StoredFile> target = this.getSnapshot();
+		TreeMap<String, StoredFile> existing = (current == null) ? new TreeMap<String, StoredFile>()
+				: current.getSnapshot();
+		for (String fn : existing.keySet()) {
+			if (!target.containsKey(fn) && sparse.includes(fn)) {
+				new File(fn).delete();
+			}
+		}
+		ArrayList<StoredFile> toRestore = new ArrayList<StoredFile>();
+		for (StoredFile fInfo : target.values()) {
+			if (!sparse.includes(fInfo.getOriginalFileName())) {
+				continue; // Outside the sparse checkout
+			}
+			StoredFile existingInfo = existing.get(fInfo.getOriginalFileName());
+			if (StoredFile.sameContents(existingInfo, fInfo)
+					&& fInfo.isUnmodified()) {
+				continue; // Leave the file and its timestamp alone
+			}
+			toRestore.add(fInfo);
+		}
+		return restoreAll(toRestore);
+	}
+
+	/**
+	 * Restores the files on a pool of workers. Directories are created first,
+	 * and blobs a blobless clone does not have are fetched in one batch, so
+	 * that the workers only copy files. Files that could not be restored are
+	 * reported together once all workers are done.
+	 */
+	private static boolean restoreAll(ArrayList<StoredFile> toRestore) {
+		TreeSet<String> dirs = new TreeSet<String>();
+		ArrayList<String> hashes = new ArrayList<String>();
+		for (StoredFile fInfo : toRestore) {
+			File dir = new File(fInfo.getOriginalFileName()).getParentFile();
+			if (dir != null)
+				dirs.add(dir.getPath());
+			if (fInfo.getContentHash() != null)
+				hashes.add(fInfo.getContentHash());
+		}
+		ObjectStore.current().fetchMissing(hashes);
+		for (String dir : dirs) {
+			new File(dir).mkdirs();
+		}
+
+		WorkerPool pool = new WorkerPool();
+		ArrayList<Future<Boolean>> pending = new ArrayList<Future<Boolean>>();
+		for (final StoredFile fInfo : toRestore) {
+			pending.add(pool.submit(new Callable<Boolean>() {
+				@Override
+				public Boolean call() {
+					return fInfo.restoreFile();
+				}
+			}));
+		}
+		ArrayList<String> failed = new ArrayList<String>();
+		for (int i = 0; i < pending.size(); ++i) {
+			boolean restored;
+			try {
+				restored = pending.get(i).get();
+			} catch (Exception e) {
+				restored = false;
+			}
+			if (!restored)
+				failed.add(toRestore.get(i).getOriginalFileName());
+		}
+		pool.shutdown();
+		if (!failed.isEmpty()) {
+			System.out.println("Could not restore " + failed.size()
+					+ " file(s):");
+			for (String fn : failed) {
+				System.out.println(fn);
+			}
+			return false;
 		}
 		return true;
 	}
@@ -255,20 +492,13 @@ public class CommitNode implements Serializable {
 	 * Restore file if it exists. Else, return false
 	 */
 	public boolean checkout(String fileName) {
-		/**
-		 * Create a new temp node to consolidate actions specified in this node
-		 * oldFile, addedFiles, removedFiles consolidations
-		 */
-		CommitNode consolidated = new CommitNode(this, -1); // id not used.
-		File toRestore = new File(fileName);
-		String fullFileName = toRestore.getAbsolutePath();
-		for (StoredFile fInfo : consolidated.oldFiles) {
-			if (fInfo.getAbsoluteFileName().equals(fullFileName)) {
-				fInfo.restoreFile();
-				return true;
-			}
+		StoredFile fInfo = this.getSnapshot().get(
+				new File(fileName).getAbsolutePath());
+		if (fInfo == null) {
+			return false; // File does not exist
 		}
-		return false; // File does not exist
+		fInfo.restoreFile();
+		return true;
 	}
 
 	/**
@@ -287,62 +517,16 @@ public class CommitNode implements Serializable {
 	}
 
 	/**
-	 * Gives the "replay" copy of the commit node
+	 * Gives the "replay" copy of the commit node on top of newParent, with the
+	 * given message and changes
 	 */
-	public CommitNode replay(CommitTree t) {
-		CommitNode replayed = new CommitNode(t.getNextCommitId());
-		replayed.msg = this.msg;
-		replayed.time = new Date();
-		replayed.oldFiles = new ArrayList<StoredFile>();
-		replayed.oldFiles.addAll(this.oldFiles);
-		replayed.addedFiles = new ArrayList<StoredFile>();
-		replayed.addedFiles.addAll(this.addedFiles);
-		replayed.deletedFiles = new ArrayList<String>();
-		replayed.deletedFiles.addAll(this.deletedFiles);
-		replayed.parent = null;
+	public CommitNode replay(CommitNode newParent, long commitId,
+			String commitMsg, Collection<StoredFile> added,
+			Collection<String> deleted) {
+		CommitNode replayed = new CommitNode(newParent, commitId);
+		replayed.msg = commitMsg;
+		replayed.addedFiles.addAll(added);
+		replayed.deletedFiles.addAll(deleted);
 		return replayed;
 	}
-
-	/**
-	 * Returns a HashMap<absFn, storedFile> of modified files after this commit
-	 * node It is assumed that added and removed files are already taken care of
-	 * in this node (assumed that the IPC is given)
-	 */
-	public HashMap<String, StoredFile> getModifiedFiles(CommitNode otherCommit) {
-		HashMap<String, StoredFile> toReturn = new HashMap<String, StoredFile>();
-		int pos;
-		for (StoredFile fInfo : this.oldFiles) {
-			pos = StoredFile.getStoredFile(otherCommit.oldFiles,
-					fInfo.getAbsoluteFileName());
-			if (pos != -1) {
-				// file exists in the other commit, so compare the timestamps
-				StoredFile otherInfo = otherCommit.oldFiles.get(pos);
-				if (fInfo.getLastModified() != otherInfo.getLastModified()) {
-					toReturn.put(fInfo.getAbsoluteFileName(), otherInfo);
-				}
-			}
-		}
-		return toReturn;
-	}
-
-	public void removeFromDeleteList(String fileName) {
-		this.deletedFiles.remove(fileName);
-
-	}
-
-	/**
-	 * Adds or replaces an existing StoredFile in the oldFiles list
-	 * 
-	 * @param fInfo
-	 */
-	public void addOrReplace(StoredFile fInfo) {
-		if (fInfo == null)
-			return;
-		int existingPos = StoredFile.getStoredFile(this.oldFiles,
-				fInfo.getOriginalFileName());
-		if (existingPos != -1) {
-			this.oldFiles.remove(existingPos);
-		}
-		this.oldFiles.add(fInfo);
-	}
 }
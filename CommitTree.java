@@ -1,16 +1,23 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
 import java.io.Serializable;
 import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Scanner;
-import java.util.Stack;
+import java.util.TreeMap;
 import java.util.TreeSet;
 
 /**
@@ -18,7 +25,7 @@ import java.util.TreeSet;
  * and data structures, and comments in this method provide an explanation
  *
  */
-public class CommitTree implements Serializable, FileNameGenerator {
+public class CommitTree implements Serializable {
 	private static final long serialVersionUID = 1L;
 	// Name of the file n which this CommitTree is serialized and stored
 	private final String REPOSITORY_FILE_NAME = "ctree.ser";
@@ -26,98 +33,540 @@ public class CommitTree implements Serializable, FileNameGenerator {
 	private String repoDir; // The .gitlet directory
 	private long lastUsedCommitId = 0; // Remembers last used commit id to
 										// generate unique commit ids
-	private long lastUsedFileNo = 0;
-	private Branch master; // Points to the Master node in the commit tree
-	private ArrayList<Branch> branches; // Stores all branches, including
-										// master, in this array
-	private Branch currBranch = master; // Pointer to current branch
+	// Branches of trees saved before the ref store, moved there when read
+	private Branch master;
+	private ArrayList<Branch> branches;
+	private Branch currBranch = master;
+	// In progress commits of trees saved before the staging index, by branch
+	private HashMap<String, CommitNode> inProgressCommits;
+	// The branches and HEAD, see RefStore
+	private transient RefStore refs = null;
+	// The branches fetched from remotes
+	private transient RefStore remoteRefs = null;
+	// All commits by uid, built when first needed
+	private transient HashMap<String, CommitNode> commitsByUid = null;
+	// The staged files, see StagingIndex
+	private transient StagingIndex index = null;
+	// True once the branches or staged files of an older tree were moved out
+	private transient boolean migrated = false;
 
 	// To keep track of all commits by id and message
 	// Store all maps with msg or id as key
 	private HashMap<String, ArrayList<CommitNode>> allCommitsByMsg = new HashMap<String, ArrayList<CommitNode>>();
 	private HashMap<Long, CommitNode> allCommitsById = new HashMap<Long, CommitNode>();
+	// Generation of the saved tree this one was read from
+	private transient long generation = 0;
+	// The branch heads when the tree was saved, to reset the branches to if
+	// a newer generation is lost
+	private TreeMap<String, Long> savedHeads = null;
 
 	/**
 	 * Initializing the CommitTree object. Repository directory is the .gitlet
-	 * folder, and we also create an arraylist of branches, setting the initial
-	 * branch to be the "master" branch. We add that into branches. We also
-	 * create an initial commit and add as the head node of the master branch.
-	 * We are also tracking this commitNode, so that we can know how it changes
-	 * in the future given certain messages. The current branch of the
-	 * commitTree is the master branch upon initialization.
+	 * folder. We create an initial commit and make it the head of the
+	 * "master" branch in the ref store. We are also tracking this commitNode,
+	 * so that we can know how it changes in the future given certain
+	 * messages. The current branch of the commitTree is the master branch
+	 * upon initialization.
 	 */
 	public CommitTree(String repositoryParentDir) {
 		this.repoParent = repositoryParentDir;
 		this.repoDir = this.repoParent + "/.gitlet";
-		this.branches = new ArrayList<Branch>();
 
 		// Create initial commit node and add it to the CommitTree
 		// Increment and use lastUsedCommitId
 		CommitNode cnode = new CommitNode(++lastUsedCommitId);
 		String initialMsg = "initial commit";
 		cnode.setCommitMessage(initialMsg);
-		// Remember the master branch
-		this.master = new Branch("master", this, cnode);
-
 		this.trackCommit(cnode);
 
-		// Add master to the list of branches
-		this.branches.add(this.master);
+		// Create the master branch and make it the current one
+		this.refs = new RefStore(this.repoDir);
+		this.refs.update("master", cnode.getCommitId());
+		this.refs.setHead("master");
+	}
 
-		// Keep a pointer to the currently used branch
-		this.currBranch = master;
+	/**
+	 * Initializing a CommitTree with no commits, to clone another repository
+	 * into
+	 */
+	private CommitTree(String gitletDir, RefStore refs) {
+		this.setLocation(gitletDir);
+		this.refs = refs;
+	}
 
+	/**
+	 * Clones the current branch of the source tree into a new tree in the
+	 * given .gitlet directory. Only its last depth commits, all of them if
+	 * depth is 0, and the blobs they need are brought; if that leaves older
+	 * commits out, the oldest one brought is a shallow boundary. The branch
+	 * becomes the current one and origin/<branch> points to its head too. If
+	 * blobless, no blob is brought; the store must already have the source's
+	 * as its promisor. Returns null, after printing why, if the commits could
+	 * not be brought.
+	 */
+	public static CommitTree cloneFrom(String gitletDir, CommitTree source,
+			int depth, boolean blobless) {
+		Branch branch = source.getCurrentBranch();
+		CommitNode head = branch.getHead();
+		CommitNode oldest = head;
+		for (int i = 1; (depth == 0) || (i < depth); ++i) {
+			if (oldest.getParent() == null)
+				break;
+			oldest = oldest.getParent();
+		}
+		List<CommitNode> commits = Pack.commitsSince(head, oldest.getParent());
+		CommitTree ctree = new CommitTree(gitletDir, new RefStore(gitletDir));
+		int options = (oldest.getParent() != null) ? Pack.SHALLOW : 0;
+		if (blobless)
+			options |= Pack.NO_BLOBS;
+		if (Pack.transfer(source, commits, ctree, options) == null)
+			return null;
+		long headId = ctree.getCommitByUid(source.getUid(head)).getCommitId();
+		ctree.getRefs().update(branch.getName(), headId);
+		ctree.getRefs().setHead(branch.getName());
+		ctree.getRemoteRefs().update("origin/" + branch.getName(), headId);
+		return ctree;
 	}
 
 	// --------------------------------------------------------------------------------------------
 	/**
-	 * This method retrieves a CommitTree from the given serialized file.
-	 * 
-	 * @param ctreeFileName
-	 *            - Name of the file in which a serialized version of CommitTree
-	 *            is stored
-	 * @return The CommitTree
-	 */
-	public static CommitTree loadCommitTree(String ctreeFileName) {
-		FileInputStream fIn;
-		ObjectInputStream objIn;
-		CommitTree ctree = null;
-		try {
-			fIn = new FileInputStream(ctreeFileName);
-			objIn = new ObjectInputStream(fIn);
+	 * Writes the CommitTree as the next generation of the repository, and
+	 * then the branches and staged files that refer to it
+	 */
+	public boolean save() {
+		RefStore refs = this.getRefs();
+		StagingIndex index = this.getStagingIndex();
+		// Branches and staged files moved out are no longer saved in the tree
+		this.master = null;
+		this.branches = null;
+		this.currBranch = null;
+		this.inProgressCommits = null;
+		this.savedHeads = refs.list();
+		if (!new TreeStore(this.repoDir).publish(this))
+			return false;
+		this.migrated = false;
+		return refs.flush() && this.getRemoteRefs().flush() && index.flush();
+	}
+
+	/**
+	 * Writes only the branches, HEAD and staged files, after a command that
+	 * changed nothing else. A tree they were just moved out of is saved
+	 * whole.
+	 */
+	public boolean saveState() {
+		if (this.migrated) {
+			return this.save();
+		}
+		return this.getRefs().flush() && this.getRemoteRefs().flush()
+				&& this.getStagingIndex().flush();
+	}
+
+	/**
+	 * Access the ref store. Branches of a tree saved before the ref store are
+	 * moved into it when first needed, and written there at the next save.
+	 */
+	public RefStore getRefs() {
+		if (this.refs == null) {
+			this.refs = new RefStore(this.repoDir);
+		}
+		if ((this.branches != null) && !this.refs.exists()) {
+			for (Branch b : this.branches) {
+				this.refs.update(b.getName(), b.getLegacyHead().getCommitId());
+				if (b.getLegacyInProgressCommit() != null) {
+					if (this.inProgressCommits == null)
+						this.inProgressCommits = new HashMap<String, CommitNode>();
+					this.inProgressCommits.put(b.getName(),
+							b.getLegacyInProgressCommit());
+				}
+			}
+			this.refs.setHead(this.currBranch.getName());
+			this.migrated = true;
+		}
+		return this.refs;
+	}
 
-			ctree = (CommitTree) objIn.readObject();
+	/**
+	 * Use the given ref store, read by the caller before the tree, or read
+	 * the refs again if null
+	 */
+	public void setRefs(RefStore refs) {
+		this.refs = refs;
+		this.remoteRefs = null;
+	}
 
-			objIn.close();
-			fIn.close();
-		} catch (Exception e) {
-			System.out.println("Could not read CommitTree to file: "
-					+ ctreeFileName);
+	/**
+	 * Access the store of the branches fetched from remotes, named
+	 * <remote>/<branch>
+	 */
+	public RefStore getRemoteRefs() {
+		if (this.remoteRefs == null) {
+			this.remoteRefs = new RefStore(this.repoDir, RefStore.REMOTES_DIR);
 		}
-		return ctree;
+		return this.remoteRefs;
+	}
+
+	/**
+	 * Access the staging index. Files staged in the in progress commits of a
+	 * tree saved before the index are moved into it when first needed.
+	 */
+	public StagingIndex getStagingIndex() {
+		RefStore refs = this.getRefs(); // Moves out the in progress commits
+		if (this.index == null) {
+			this.index = new StagingIndex(this.repoDir);
+		}
+		if ((this.inProgressCommits != null) && !this.index.exists()) {
+			for (String branchName : this.inProgressCommits.keySet()) {
+				if (refs.resolve(branchName) >= 0)
+					this.inProgressCommits.get(branchName).restage(this.index,
+							branchName);
+			}
+			this.inProgressCommits = null;
+			this.migrated = true;
+		}
+		return this.index;
+	}
+
+	/**
+	 * Use the given staging index, or read it again if null
+	 */
+	public void setStagingIndex(StagingIndex index) {
+		this.index = index;
+	}
+
+	/**
+	 * Access every commit of the tree
+	 */
+	public Collection<CommitNode> getAllCommits() {
+		return this.allCommitsById.values();
+	}
+
+	/**
+	 * Access a commit by its id, null if there is none
+	 */
+	public CommitNode getCommit(long commitId) {
+		return this.allCommitsById.get(commitId);
+	}
+
+	/**
+	 * Access a branch by its name, null if there is none
+	 */
+	public Branch getBranch(String branchName) {
+		if (this.getRefs().resolve(branchName) >= 0) {
+			return new Branch(branchName, this);
+		}
+		return null;
+	}
+
+	/**
+	 * Access a branch, or a branch fetched from a remote, named
+	 * <remote>/<branch>, by its name, null if there is none. Fetched branches
+	 * can only be used for their commits, never made the current branch.
+	 */
+	private Branch getBranchOrFetched(String branchName) {
+		Branch b = this.getBranch(branchName);
+		if ((b == null) && (this.getRemoteRefs().resolve(branchName) >= 0)) {
+			b = new Branch(branchName, this, this.getRemoteRefs());
+		}
+		return b;
+	}
+
+	/**
+	 * Returns the uid of the commit, computing it, and those of its
+	 * ancestors, if needed
+	 */
+	public String getUid(CommitNode cnode) {
+		if (cnode.getUid() != null)
+			return cnode.getUid();
+		ArrayList<CommitNode> toCompute = new ArrayList<CommitNode>();
+		for (CommitNode c = cnode; (c != null) && (c.getUid() == null); c = c
+				.getParent()) {
+			toCompute.add(c);
+		}
+		for (int i = toCompute.size() - 1; i >= 0; --i) {
+			CommitNode c = toCompute.get(i);
+			c.computeUid((c.getParent() == null) ? "" : c.getParent().getUid(),
+					this.repoParent);
+		}
+		return cnode.getUid();
+	}
+
+	/**
+	 * Access a commit by its uid, null if there is none
+	 */
+	public CommitNode getCommitByUid(String uid) {
+		if (this.commitsByUid == null) {
+			this.commitsByUid = new HashMap<String, CommitNode>();
+			for (CommitNode cnode : this.allCommitsById.values()) {
+				this.commitsByUid.put(this.getUid(cnode), cnode);
+			}
+		}
+		return this.commitsByUid.get(uid);
+	}
+
+	/**
+	 * The name of a file relative to the repository
+	 */
+	public String relativeName(String absFileName) {
+		return CommitNode.relativeName(absFileName, this.repoParent);
+	}
+
+	/**
+	 * The absolute name of a file given relative to the repository
+	 */
+	public String absoluteName(String fileName) {
+		return new File(this.repoParent, fileName).getPath();
+	}
+
+	/**
+	 * Adds a commit received from another repository without its parent, as
+	 * a shallow boundary holding the files it inherited
+	 */
+	public CommitNode addShallowCommit(String uid, String parentUid,
+			Date time, String msg, Collection<StoredFile> inherited,
+			Collection<StoredFile> added, Collection<String> deleted) {
+		CommitNode cnode = CommitNode.receivedShallow(this.getNextCommitId(),
+				uid, parentUid, time, msg, inherited, added, deleted);
+		this.recordCommit(cnode);
+		return cnode;
+	}
+
+	/**
+	 * Adds a commit received from another repository on top of parent
+	 */
+	public CommitNode addReceivedCommit(String uid, CommitNode parent,
+			Date time, String msg, Collection<StoredFile> added,
+			Collection<String> deleted) {
+		CommitNode cnode = CommitNode.received(parent, this.getNextCommitId(),
+				uid, time, msg, added, deleted);
+		this.recordCommit(cnode);
+		return cnode;
+	}
+
+	/**
+	 * Brings the commits of the remote's branch that this repository does
+	 * not have, and the blobs they need, and points <remote>/<branch> at
+	 * its head
+	 */
+	public void fetch(String remoteName, String branchName) {
+		String remoteDir = this.findRemote(remoteName);
+		if (remoteDir == null)
+			return;
+		CommitTree remote = new TreeStore(remoteDir).load();
+		if (remote == null)
+			return;
+		long remoteHeadId = remote.getRefs().resolve(branchName);
+		if (remoteHeadId < 0) {
+			System.out.println("That remote does not have that branch.");
+			return;
+		}
+		CommitNode remoteHead = remote.getCommit(remoteHeadId);
+		List<CommitNode> received = Pack.transfer(remote, Pack.missingCommits(
+				remote, remoteHead, this), this, 0);
+		if (received == null)
+			return;
+		CommitNode head = this.getCommitByUid(remote.getUid(remoteHead));
+		this.getRemoteRefs().update(remoteName + "/" + branchName,
+				head.getCommitId());
 	}
 
 	/**
-	 * Writes the CommitTree to a file.
+	 * Sends the commits of the current branch that the remote does not have,
+	 * and the blobs they need, and moves the remote's branch to the current
+	 * head. The remote's branch must be in the history of the current head,
+	 * and must not be the remote's current branch, whose working files and
+	 * staged files would no longer match its head.
 	 */
-	public void save() {
-		FileOutputStream fOut;
-		ObjectOutputStream objOut;
+	public void push(String remoteName, String branchName) {
+		String remoteDir = this.findRemote(remoteName);
+		if (remoteDir == null)
+			return;
+		RepoLock lock = RepoLock.acquire(new File(remoteDir), "push");
+		if (lock == null)
+			return;
 		try {
-			fOut = new FileOutputStream(repoDir + "/" + REPOSITORY_FILE_NAME);
-			objOut = new ObjectOutputStream(fOut);
-			objOut.writeObject(this);
+			CommitTree remote = new TreeStore(remoteDir).load();
+			if (remote == null)
+				return;
+			CommitNode head = this.getCurrentBranch().getHead();
+			long remoteHeadId = remote.getRefs().resolve(branchName);
+			if (remoteHeadId >= 0) {
+				String remoteUid = remote.getUid(remote
+						.getCommit(remoteHeadId));
+				CommitNode c = head;
+				while ((c != null) && !this.getUid(c).equals(remoteUid)) {
+					c = c.getParent();
+				}
+				if (c == null) {
+					System.out
+							.println("Please pull down remote changes before pushing.");
+					return;
+				}
+			}
+			if (branchName.equals(remote.getRefs().getHead())) {
+				System.out.println("Cannot push to the branch checked out in"
+						+ " the remote repository.");
+				return;
+			}
+			List<CommitNode> received = Pack.transfer(this,
+					Pack.missingCommits(this, head, remote), remote, 0);
+			if (received == null)
+				return;
+			remote.getRefs().update(branchName,
+					remote.getCommitByUid(this.getUid(head)).getCommitId());
+			if (!remote.save())
+				return;
+			this.getRemoteRefs().update(remoteName + "/" + branchName,
+					head.getCommitId());
+		} finally {
+			lock.release();
+		}
+	}
+
+	/**
+	 * Writes the branch's commits since the base commit, all of them if
+	 * baseIdStr is null, and the blobs they add, to a bundle file: a pack
+	 * naming the branch, which another repository can unbundle without a
+	 * path to this one
+	 */
+	public void createBundle(String fileName, String branchName,
+			String baseIdStr) {
+		Branch branch = this.getBranch(branchName);
+		if (branch == null) {
+			System.out.println("A branch with that name does not exist.");
+			return;
+		}
+		CommitNode base = null;
+		if (baseIdStr != null) {
+			try {
+				base = this.allCommitsById.get(Long.parseLong(baseIdStr));
+			} catch (NumberFormatException e) {
+				base = null;
+			}
+			if (base == null) {
+				System.out.println("No commit with that id exists.");
+				return;
+			}
+		}
+		CommitNode head = branch.getHead();
+		List<CommitNode> commits = Pack.commitsSince(head, base);
+		if (commits == null) {
+			System.out
+					.println("That commit is not in the history of that branch.");
+			return;
+		}
+		TreeMap<String, String> refs = new TreeMap<String, String>();
+		refs.put(branchName, this.getUid(head));
+		File f = new File(fileName);
+		try {
+			OutputStream out = new BufferedOutputStream(new FileOutputStream(f));
+			try {
+				Pack.write(out, this, commits, null, refs, 0);
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			f.delete();
+			System.out.println("Could not write bundle: " + fileName);
+		}
+	}
+
+	/**
+	 * Adds the commits and blobs of a bundle file that this repository does
+	 * not have, and points bundle/<branch> at the head of each branch it
+	 * names. The bundle's base commit, if it has one, must already be here.
+	 */
+	public void unbundle(String fileName) {
+		TreeMap<String, String> refs = new TreeMap<String, String>();
+		List<CommitNode> received;
+		try {
+			InputStream in = new BufferedInputStream(new FileInputStream(
+					fileName));
+			try {
+				received = Pack.read(in, this, refs);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			System.out.println("Could not read bundle: " + fileName);
+			return;
+		}
+		if (received == null)
+			return;
+		for (String name : refs.keySet()) {
+			this.getRemoteRefs().update("bundle/" + name,
+					this.getCommitByUid(refs.get(name)).getCommitId());
+		}
+	}
+
+	/**
+	 * Returns the .gitlet directory of the remote, or null after printing
+	 * why there is none
+	 */
+	private String findRemote(String remoteName) {
+		String remoteDir = new Remotes(this.repoDir).get(remoteName);
+		if (remoteDir == null) {
+			System.out.println("A remote with that name does not exist.");
+			return null;
+		}
+		if (!new File(remoteDir).isDirectory()) {
+			System.out.println("Remote directory not found.");
+			return null;
+		}
+		return remoteDir;
+	}
 
-			objOut.flush();
-			fOut.flush();
-			objOut.close();
-			fOut.close();
-		} catch (Exception e) {
-			System.out.println("Could not write CommitTree to file: " + repoDir
-					+ "/" + REPOSITORY_FILE_NAME);
+	/**
+	 * Use the given .gitlet directory, the one the tree was read from, as
+	 * the repository location
+	 */
+	public void setLocation(String gitletDir) {
+		this.repoDir = gitletDir;
+		this.repoParent = new File(gitletDir).getParent();
+	}
+
+	/**
+	 * Points every branch whose head is not in this tree, an older
+	 * generation recovered in place of a lost one, back to its head when this
+	 * tree was saved, or to the first commit if it had none. Fetched branches
+	 * into the lost generation are dropped, to be fetched again. Their
+	 * staged files and HEAD are kept.
+	 */
+	public void recoverRefs() {
+		RefStore refs = this.getRefs();
+		for (String name : refs.list().keySet()) {
+			if (this.getCommit(refs.resolve(name)) != null)
+				continue;
+			Long id = (this.savedHeads == null) ? null : this.savedHeads
+					.get(name);
+			if ((id == null) || (this.getCommit(id) == null))
+				id = Collections.min(this.allCommitsById.keySet());
+			refs.update(name, id);
+			System.out.println("Reset branch " + name + " to commit " + id
+					+ ".");
+		}
+		RefStore fetched = this.getRemoteRefs();
+		for (String name : fetched.list().keySet()) {
+			if (this.getCommit(fetched.resolve(name)) == null) {
+				fetched.delete(name);
+				System.out.println("Dropped fetched branch " + name + ".");
+			}
 		}
 	}
 
+	/**
+	 * Access the generation this tree was loaded from or saved as
+	 */
+	public long getGeneration() {
+		return this.generation;
+	}
+
+	/**
+	 * Remember the generation this tree was loaded from or saved as
+	 */
+	public void setGeneration(long generation) {
+		this.generation = generation;
+	}
+
 	/**
 	 * Gets repository location
 	 */
@@ -129,7 +578,7 @@ public class CommitTree implements Serializable, FileNameGenerator {
 	 * Invokes the printCommitLog method of Branch.java
 	 */
 	public void log() {
-		this.currBranch.printCommitLog();
+		this.getCurrentBranch().printCommitLog();
 	}
 
 	/**
@@ -165,20 +614,21 @@ public class CommitTree implements Serializable, FileNameGenerator {
 	 */
 	public void showStatus() {
 		System.out.println("=== Branches ===");
-		for (Branch b : branches) {
-			if (b == currBranch) {
+		Branch currBranch = this.getCurrentBranch();
+		for (String name : this.getRefs().list().keySet()) {
+			if (name.equals(currBranch.getName())) {
 				System.out.print("*");
 			}
-			System.out.println(b.getName());
+			System.out.println(name);
 		}
 		System.out.println();
 
 		System.out.println("=== Staged Files ===");
-		this.currBranch.printStagedFiles();
+		currBranch.printStagedFiles();
 		System.out.println();
 
 		System.out.println("=== Files Marked for Removal ===");
-		this.currBranch.showFilesMarkedForRemoval();
+		currBranch.showFilesMarkedForRemoval();
 		System.out.println();
 	}
 
@@ -187,30 +637,33 @@ public class CommitTree implements Serializable, FileNameGenerator {
 	 * 
 	 * @param result
 	 *            is set equal to the return value of checking out from that
-	 *            branch If it's not in branches, it's a file name, and check
+	 *            branch If it's not a branch, it's a file name, and check
 	 *            that out from current branch If all else fails, print out the
 	 *            error message
 	 */
 	public void checkout(String name) {
 		// First check if there is a branch with the given name
+		Branch currBranch = this.getCurrentBranch();
 		if (currBranch.getName().equals(name)) {
 			System.out.println("No need to checkout the current branch.");
 			return;
 		}
 		boolean result = false;
-		for (Branch b : branches) {
-			if (b.getName().equals(name)) {
-				result = true;
-				boolean checkedOut = b.checkout();
-				if (checkedOut) {
-					this.currBranch = b;
-					break;
-				}
+		Branch b = this.getBranch(name);
+		if ((b == null) && (this.getRemoteRefs().resolve(name) >= 0)) {
+			System.out
+					.println("Cannot checkout a fetched branch. Merge or rebase onto it instead.");
+			return;
+		}
+		if (b != null) {
+			result = true;
+			if (b.checkout(currBranch.getHead())) {
+				this.getRefs().setHead(name);
 			}
 		}
 		if (!result) {
 			// Checkout the given file name from current branch
-			result = this.currBranch.checkout(name);
+			result = currBranch.checkout(name);
 		}
 		if (!result) {
 			System.out
@@ -236,38 +689,36 @@ public class CommitTree implements Serializable, FileNameGenerator {
 	}
 
 	/**
-	 * Adding branch to arraylist of branches if it's name does not already
-	 * exist
+	 * Adding branch to the ref store if it's name does not already exist
 	 */
 	public void addBranch(String branchName) {
-		for (Branch b : branches) {
-			if (b.getName().equals(branchName)) {
-				System.out.println("A branch with that name already exists.");
-				return;
-			}
+		if (!RefStore.isValidName(branchName)) {
+			System.out.println("Not a valid branch name.");
+			return;
+		}
+		if (this.getRefs().resolve(branchName) >= 0) {
+			System.out.println("A branch with that name already exists.");
+			return;
 		}
-		Branch toAdd = new Branch(branchName, this, currBranch.getHead());
-		branches.add(toAdd);
+		this.getRefs().update(branchName,
+				this.getCurrentBranch().getHead().getCommitId());
 	}
 
 	/**
-	 * Remove branch from arraylist of branches if it's not current Branch and
-	 * it exists. Else print error message
+	 * Remove branch from the ref store if it's not current Branch and it
+	 * exists, along with its staged files. Else print error message
 	 */
 	public void removeBranch(String branchName) {
-		if (currBranch.getName().equals(branchName)) {
+		if (this.getCurrentBranch().getName().equals(branchName)) {
 			System.out.println("Cannot remove the current branch.");
 			return;
 		}
-		for (Branch b : branches) {
-			if (b.getName().equals(branchName)) {
-				b.setHead(null);
-				branches.remove(b);
-				return;
-			}
+		if (this.getRefs().resolve(branchName) < 0) {
+			System.out.println("A branch with that name does not exist.");
+			return;
 		}
-		System.out.println("A branch with that name does not exist.");
-
+		this.getRefs().delete(branchName);
+		this.getStagingIndex().clear(branchName);
 	}
 
 	/**
@@ -290,6 +741,9 @@ public class CommitTree implements Serializable, FileNameGenerator {
 	public void recordCommit(CommitNode aCommit) {
 		// Add this commit to the list of all commits
 		allCommitsById.put(new Long(aCommit.getCommitId()), aCommit);
+		if (this.commitsByUid != null) {
+			this.commitsByUid.put(this.getUid(aCommit), aCommit);
+		}
 
 		ArrayList<CommitNode> tempList = allCommitsByMsg.get(aCommit
 				.getCommitMessage());
@@ -305,34 +759,55 @@ public class CommitTree implements Serializable, FileNameGenerator {
 	 * Access current Branch
 	 */
 	public Branch getCurrentBranch() {
-		return this.currBranch;
+		return new Branch(this.getRefs().getHead(), this);
 	}
 
-	@Override
 	/**
-	 * CommitTree implements FileNameGenerator. Gives random fileName that represents the file in .gitlet
+	 * Resetting currBranch's head to the commit with that commitID Then
+	 * checking out
 	 */
-	public String getUniqueFileName(String extn) {
-		return "FILE" + (++lastUsedFileNo) + "." + extn;
+	public void reset(String commitID) {
+
+		CommitNode toResetTo = this.allCommitsById
+				.get(Long.parseLong(commitID));
+		if (toResetTo == null) {
+			System.out.println("No commit with that id exists.");
+			return;
+		}
+		Branch currBranch = this.getCurrentBranch();
+		CommitNode previousHead = currBranch.getHead();
+		currBranch.setHead(toResetTo);
+		toResetTo.checkout(previousHead);
 	}
 
 	/**
-	 * Gets repository fileName
+	 * Restricts the working directory to the files matching the patterns, or
+	 * to every file if no patterns are given. Files of the current head that
+	 * leave the sparse checkout are deleted, unless they were modified, and
+	 * files that enter it are restored.
 	 */
-	public String getRepoFileName() {
-		return repoDir + "/" + REPOSITORY_FILE_NAME;
+	public void setSparseCheckout(List<String> patterns) {
+		SparseCheckout sparse = new SparseCheckout(this.repoParent, patterns);
+		if (!sparse.save())
+			return;
+		CommitNode head = this.getCurrentBranch().getHead();
+		for (StoredFile fInfo : head.getSnapshot().values()) {
+			if (!sparse.includes(fInfo.getOriginalFileName())
+					&& fInfo.isUnmodified()) {
+				new File(fInfo.getOriginalFileName()).delete();
+			}
+		}
+		head.checkout(head, sparse);
 	}
 
 	/**
-	 * Resetting currBranch's head to the commit with that commitID Then
-	 * checking out
+	 * Prints the sparse checkout patterns
 	 */
-	public void reset(String commitID) {
-
-		CommitNode toResetTo = this.allCommitsById
-				.get(Long.parseLong(commitID));
-		currBranch.setHead(toResetTo);
-		currBranch.getHead().checkout();
+	public void showSparseCheckout() {
+		for (String pattern : SparseCheckout.load(this.repoParent)
+				.getPatterns()) {
+			System.out.println(pattern);
+		}
 	}
 
 	/**
@@ -361,84 +836,139 @@ public class CommitTree implements Serializable, FileNameGenerator {
 	}
 
 	/**
-	 * New Merge method Merges the given branch to the current branch.
+	 * Returns true, after printing why, if the branches have no common
+	 * ancestor because the history of either stops at a shallow boundary.
+	 * Their split point was then not cloned, so they cannot be merged or
+	 * rebased.
+	 */
+	private boolean beyondShallowBoundary(Branch firstBr, Branch secondBr) {
+		if (firstBr.getHead().hasShallowHistory()
+				|| secondBr.getHead().hasShallowHistory()) {
+			System.out
+					.println("The split point of the branches is older than the shallow history.");
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Merges the given branch into the current branch. The merge is planned
+	 * once per file against the common ancestor, and the plan is executed on
+	 * a pool of workers. Changes taken from the given branch and clean
+	 * three-way merges are staged; conflicts are left in the working
+	 * directory for the user to resolve.
 	 */
 	public void merge(String branchName) {
+		Branch currBranch = this.getCurrentBranch();
 		if (branchName.equals(currBranch.getName())) {
 			System.out.println("Cannot merge a branch with itself");
 			return;
 		}
-		CommitNode givenIPC = null;
-		Branch givenBr = null;
-		for (Branch b : branches) {
-			if (branchName.equals(b.getName())) {
-				// create IPC to find out what happened in the given branch
-				givenBr = b;
-				givenIPC = new CommitNode(b.getHead(), -2);
-				break;
-			}
-		}
+		Branch givenBr = this.getBranchOrFetched(branchName);
 		if (givenBr == null) {
 			System.out.println("A branch with that name does not exist");
 			return;
 		}
 
-		// Files in given branch, not in currBranch copied to currBranch
-		// create an IPC to calculate what happened in the current head
-		CommitNode currIPC = new CommitNode(currBranch.getHead(), -1);
-		// first find out what is not in the currIPC
-		for (StoredFile fInfo : givenIPC.getOldFiles()) {
-			int pos = StoredFile.getStoredFile(currIPC.getOldFiles(),
-					fInfo.getOriginalFileName());
-			if (pos == -1) { // The file in giveBr, not currBr. Add it
-				currBranch.getHead().addOrReplace(fInfo);
-				// it is not removed subsequently. (Because it might have just
-				// been scheduled to be deleted in currBranch head.)
-				currBranch.getHead().removeFromDeleteList(
-						fInfo.getOriginalFileName());
-			}
+		CommitNode ancestor = this.findEarliestCommonAncestor(givenBr,
+				currBranch);
+		if ((ancestor == null) && this.beyondShallowBoundary(givenBr, currBranch))
+			return;
+		TreeMap<String, StoredFile> baseFiles = (ancestor == null) ? new TreeMap<String, StoredFile>()
+				: ancestor.getSnapshot();
+		WorkerPool pool = new WorkerPool();
+		MergePlan plan = new MergePlan(baseFiles, currBranch.getHead()
+				.getSnapshot(), givenBr.getHead().getSnapshot(), pool);
+		plan.execute(pool, givenBr.getName(),
+				SparseCheckout.load(this.repoParent));
+		pool.shutdown();
+
+		if (this.stageMergeResult(plan)) {
+			System.out.println("Encountered a merge conflict.");
 		}
+	}
 
-		CommitNode ancestor = this.findEarliestCommonAncestor(givenBr,
-				this.currBranch);
-		CommitNode ancestorIPC = new CommitNode(ancestor, -2);
-		HashMap<String, StoredFile> modifiedInGiven = ancestorIPC
-				.getModifiedFiles(givenIPC);
-		HashMap<String, StoredFile> modifiedInCurr = ancestorIPC
-				.getModifiedFiles(currIPC);
-		// Files modified in given but not modified in curr, should be copied
-		for (String modGivenFn : modifiedInGiven.keySet()) {
-			StoredFile modInCurrFinfo = modifiedInCurr.get(modGivenFn);
-			if (modInCurrFinfo == null) {
-				// the file is modified in given but it is not in current. It
-				// should be copied to current.
-				StoredFile theStFile = modifiedInGiven.get(modGivenFn);
-				currBranch.getHead().addOrReplace(theStFile);
-				currBranch.getHead().removeFromDeleteList(
-						theStFile.getOriginalFileName());
-			}
+	/**
+	 * Applies the changes of a single commit to the current branch. Only the
+	 * files the commit added or deleted are merged, three ways, against its
+	 * parent, and only those are written in the working directory. Without
+	 * conflicts the result is committed with the commit's message.
+	 */
+	public void cherryPick(String commitIdStr) {
+		CommitNode picked;
+		try {
+			picked = this.allCommitsById.get(Long.parseLong(commitIdStr));
+		} catch (NumberFormatException e) {
+			picked = null;
 		}
-		for (String modCurrFn : modifiedInCurr.keySet()) {
-			StoredFile modInGivenFinfo = modifiedInGiven.get(modCurrFn);
-			if (modInGivenFinfo == null) {
-				// the file is modified in current but it is not in given. It
-				// should stay as is in current.
-			}
+		if (picked == null) {
+			System.out.println("No commit with that id exists.");
+			return;
+		}
+		Branch currBranch = this.getCurrentBranch();
+		TreeSet<String> paths = new TreeSet<String>(picked.getDeletedFiles());
+		for (StoredFile fInfo : picked.getAddedFiles()) {
+			paths.add(fInfo.getOriginalFileName());
+		}
+		TreeMap<String, StoredFile> baseFiles = (picked.getParent() == null) ? new TreeMap<String, StoredFile>()
+				: picked.getParent().getSnapshot();
+		WorkerPool pool = new WorkerPool();
+		MergePlan plan = new MergePlan(restrict(baseFiles, paths), restrict(
+				currBranch.getHead().getSnapshot(), paths), restrict(
+				picked.getSnapshot(), paths), pool);
+		plan.execute(pool, "commit " + picked.getCommitId(),
+				SparseCheckout.load(this.repoParent));
+		pool.shutdown();
+		boolean failed = false;
+		for (MergePlan.Step step : plan.getSteps()) {
+			failed = failed || step.hasFailed();
+		}
+		if (this.stageMergeResult(plan)) {
+			System.out.println("Encountered a merge conflict.");
+		} else if (!failed) {
+			currBranch.commit(picked.getCommitMessage());
+		}
+	}
+
+	/**
+	 * Returns the files of the snapshot with the given names
+	 */
+	private static TreeMap<String, StoredFile> restrict(
+			TreeMap<String, StoredFile> snapshot, TreeSet<String> fileNames) {
+		TreeMap<String, StoredFile> files = new TreeMap<String, StoredFile>();
+		for (String fn : fileNames) {
+			StoredFile fInfo = snapshot.get(fn);
+			if (fInfo != null)
+				files.put(fn, fInfo);
 		}
-		for (StoredFile fInfo : modifiedInGiven.values()) {
-			StoredFile currFileInfo = modifiedInCurr.get(fInfo
-					.getOriginalFileName());
-			if (currFileInfo != null) { // The file is modified in both (after
-										// the common ancestor point)
-				if (currFileInfo.getTimeStamp() != fInfo.getTimeStamp()) {
-					// there is a conflict. Copy the file from the givenIPC to
-					// the FileSystem with .conflicted
-					fInfo.restoreConflictedFile();
+		return files;
+	}
+
+	/**
+	 * Stages the changes taken from the given branch and the clean three-way
+	 * merges of an executed plan. Returns true if any file conflicted.
+	 */
+	private boolean stageMergeResult(MergePlan plan) {
+		// Record the outcome in plan order, so it is the same on every run
+		Branch currBranch = this.getCurrentBranch();
+		boolean conflicted = false;
+		for (MergePlan.Step step : plan.getSteps()) {
+			if (step.hasFailed()) {
+				System.out.println("Could not merge file: "
+						+ step.getFileName());
+			} else if (step.isConflicted()) {
+				conflicted = true;
+			} else if (step.getAction() == MergePlan.Action.TAKE_THEIRS) {
+				if (step.getTheirs() == null) {
+					currBranch.remove(step.getFileName());
+				} else {
+					currBranch.add(step.getTheirs());
 				}
+			} else if (step.getAction() == MergePlan.Action.THREE_WAY) {
+				currBranch.add(step.getFileName());
 			}
 		}
-		this.checkout(givenBr.getName());
-		this.checkout(currBranch.getName());
+		return conflicted;
 	}
 
 	/**
@@ -452,124 +982,178 @@ public class CommitTree implements Serializable, FileNameGenerator {
 	}
 
 	/**
-	 * We need to take care of the special case in rebase. Added and modified
-	 * files are added to an array list The commit nodes that are shifted use
-	 * the list to propogate changes
-	 */
-	private ArrayList<StoredFile> addToftp(CommitNode ancestor,
-			CommitNode given, CommitNode curr) {
-		CommitNode ancestorIPC = new CommitNode(ancestor, -2);
-		CommitNode givenIPC = new CommitNode(given, -3);
-		CommitNode currIPC = new CommitNode(curr, -4);
-		HashMap<String, StoredFile> modifiedInGiven = ancestorIPC
-				.getModifiedFiles(givenIPC);
-		HashMap<String, StoredFile> modifiedInCurr = ancestorIPC
-				.getModifiedFiles(currIPC);
-		ArrayList<StoredFile> filesToPropogate = new ArrayList<StoredFile>();
-		// find out the files in modifiedInGiven but not in the modifiedInCurr
-		for (String fileName : modifiedInGiven.keySet()) {
-			StoredFile tempSF = modifiedInCurr.get(fileName);
-			if (tempSF == null) {
-				// the file is not modified in current. Propogate it
-				filesToPropogate.add(modifiedInGiven.get(fileName));
-			}
+	 * Copying the commits from the current branch to the given branchName.
+	 * If prompts is given, the user is asked what to do with each commit. If
+	 * planFileName is given, that is read from the rebase plan file instead.
+	 */
+	public void rebase(String branchName, Scanner prompts, String planFileName) {
+		Branch toRebase = this.findBranchToRebase(branchName);
+		if (toRebase == null) {
+			return;
+		}
+		Branch currBranch = this.getCurrentBranch();
+		if (toRebase.inHistory(currBranch)) {
+			// reset head of the currBranch to the toRebase head
+			CommitNode previousHead = currBranch.getHead();
+			currBranch.setHead(toRebase.getHead());
+			currBranch.checkout(previousHead);
+			return;
+		} else if (currBranch.inHistory(toRebase)) {
+			// if toRebase is in history of currBranch, already up to date
+			System.out.println("Already up-to-date.");
+			return;
 		}
-		for (StoredFile fInfo : givenIPC.getOldFiles()) {
-			// now we need to check if the file is added in the head of the
-			// givenBranch.
-			int i = StoredFile.getStoredFile(ancestorIPC.getOldFiles(),
-					fInfo.getAbsoluteFileName());
-			if (i == -1) {
-				filesToPropogate.add(fInfo);
+		ArrayList<CommitNode> toReplay = this.findCommitsToReplay(toRebase);
+		if ((toReplay.get(0).getParent() == null)
+				&& this.beyondShallowBoundary(toRebase, currBranch))
+			return;
+		RebasePlan plan = new RebasePlan(toReplay);
+		if (planFileName != null) {
+			if (!plan.read(planFileName))
+				return; // Nothing is replayed
+		} else if (prompts != null) {
+			for (int i = 0; i < toReplay.size(); ++i) {
+				// the initial and final commits cannot be skipped
+				Object userResponse = confirmReplay(toReplay.get(i),
+						plan.canSkip(i), prompts);
+				if (userResponse instanceof String) {
+					plan.reword(i, (String) userResponse);
+				} else if (!((Boolean) userResponse).booleanValue()) {
+					plan.skip(i);
+				}
 			}
 		}
-		return filesToPropogate;
+		CommitNode commonAncestor = toReplay.get(0).getParent();
+		this.replay(commonAncestor, toRebase.getHead(), plan);
 	}
 
 	/**
-	 * Copying the commits from the current branch to the given branchName First
-	 * we are taking care of the fail
+	 * Writes the plan that rebasing onto branchName would follow, picking
+	 * every commit, to the file, or prints it if fileName is null
 	 */
-	public void rebase(String branchName, boolean interactive) {
-		Branch toRebase = null;
-		CommitNode commonAncestor = null;
-		if (branchName.equals(currBranch.getName())) {
-			// you can't rebase a branch onto itself
-			System.out.println("Cannot rebase a branch onto itself.");
-			return;
-		}
-		for (Branch b : branches) {
-			if (branchName.equals(b.getName())) {
-				toRebase = b;
-				break;
-			}
-		}
-		if (toRebase == null) { // there's no such branch
-			System.out.println("A branch with that name does not exist.");
+	public void writeRebasePlan(String branchName, String fileName) {
+		Branch toRebase = this.findBranchToRebase(branchName);
+		if (toRebase == null) {
 			return;
 		}
+		Branch currBranch = this.getCurrentBranch();
 		if (toRebase.inHistory(currBranch)) {
-			// reset head of the currBranch to the toRebase head
-			currBranch.setHead(toRebase.getHead());
-			currBranch.checkout();
+			System.out.println("No commits to replay.");
 			return;
 		} else if (currBranch.inHistory(toRebase)) {
-			// if toRebase is in history of currBranch, already up to date
 			System.out.println("Already up-to-date.");
 			return;
-		} else { // add the commit nodes of the branch toRebase in a treeset
-			// finding the split point of the two branches
-			TreeSet<Long> rebaseHistory = toRebase.getHead().getCommitHistory();
-			Stack<CommitNode> copiedNodes = new Stack<CommitNode>();
-			CommitNode temp = currBranch.getHead();
-			while (temp != null) {
-				if (!rebaseHistory.contains(temp.getCommitId())) {
-					copiedNodes.push(temp);
-					temp = temp.getParent();
-				} else { // temp is common ancestor
-					commonAncestor = temp;
-					break;
+		}
+		ArrayList<CommitNode> toReplay = this.findCommitsToReplay(toRebase);
+		if ((toReplay.get(0).getParent() == null)
+				&& this.beyondShallowBoundary(toRebase, currBranch))
+			return;
+		RebasePlan plan = new RebasePlan(toReplay);
+		if (fileName == null) {
+			plan.write(System.out, branchName);
+			return;
+		}
+		try {
+			PrintStream out = new PrintStream(fileName);
+			plan.write(out, branchName);
+			out.close();
+		} catch (IOException e) {
+			System.out.println("Could not write rebase plan: " + fileName);
+		}
+	}
+
+	/**
+	 * Returns the branch to rebase onto, or null after printing why it
+	 * cannot be rebased onto
+	 */
+	private Branch findBranchToRebase(String branchName) {
+		if (branchName.equals(this.getCurrentBranch().getName())) {
+			// you can't rebase a branch onto itself
+			System.out.println("Cannot rebase a branch onto itself.");
+			return null;
+		}
+		Branch b = this.getBranchOrFetched(branchName);
+		if (b == null) {
+			// there's no such branch
+			System.out.println("A branch with that name does not exist.");
+		}
+		return b;
+	}
+
+	/**
+	 * Returns the commits of the current branch that are not in the history
+	 * of toRebase, oldest first. The parent of the first is the split point.
+	 */
+	private ArrayList<CommitNode> findCommitsToReplay(Branch toRebase) {
+		TreeSet<Long> rebaseHistory = toRebase.getHead().getCommitHistory();
+		ArrayList<CommitNode> toReplay = new ArrayList<CommitNode>();
+		CommitNode temp = this.getCurrentBranch().getHead();
+		while ((temp != null) && !rebaseHistory.contains(temp.getCommitId())) {
+			toReplay.add(temp);
+			temp = temp.getParent();
+		}
+		Collections.reverse(toReplay);
+		return toReplay;
+	}
+
+	/**
+	 * Replays the commits of the plan onto the head of the given branch and moves the
+	 * current branch to the last of them. A replayed commit holds only the
+	 * files the original one added and deleted, so the snapshot of each is
+	 * its new parent's with those changes applied, and no file is stored
+	 * again. The changes of a skipped commit (one whose message is null) are
+	 * carried into the next replayed one, as the plan says. Changes to files that the given
+	 * branch renamed since the common ancestor are made to the renamed
+	 * files. The working directory is updated once, at the end.
+	 */
+	private void replay(CommitNode ancestor, CommitNode onto, RebasePlan plan) {
+		List<CommitNode> toReplay = plan.getCommits();
+		TreeMap<String, StoredFile> ontoFiles = onto.getSnapshot();
+		WorkerPool pool = new WorkerPool();
+		TreeMap<String, String> renames = RenameDetector.detect(
+				(ancestor == null) ? new TreeMap<String, StoredFile>()
+						: ancestor.getSnapshot(), ontoFiles, pool);
+		pool.shutdown();
+
+		Branch currBranch = this.getCurrentBranch();
+		CommitNode previousHead = currBranch.getHead();
+		CommitNode newHead = onto;
+		ArrayList<CommitNode> replayedNodes = new ArrayList<CommitNode>();
+		// Changes not replayed yet, one per file
+		TreeMap<String, StoredFile> added = new TreeMap<String, StoredFile>();
+		TreeSet<String> deleted = new TreeSet<String>();
+		for (int i = 0; i < toReplay.size(); ++i) {
+			CommitNode original = toReplay.get(i);
+			for (StoredFile fInfo : original.getAddedFiles()) {
+				String renamed = renames.get(fInfo.getOriginalFileName());
+				if ((renamed != null) && !ontoFiles.containsKey(fInfo
+						.getOriginalFileName())) {
+					fInfo = fInfo.renamedTo(renamed);
 				}
+				added.put(fInfo.getOriginalFileName(), fInfo);
+				deleted.remove(fInfo.getOriginalFileName());
 			}
-			ArrayList<StoredFile> filesToPropogate = this.addToftp(
-					commonAncestor, toRebase.getHead(), currBranch.getHead());
-			// add the stack nodes to toRebase. Attaching replayed nodes
-			currBranch.setHead(toRebase.getHead());
-			boolean toProceed = true;
-			while (!copiedNodes.empty()) {
-				CommitNode poppedNode = copiedNodes.pop();
-				toProceed = true; // assuming that we will proceed
-				Object userResponse = null;
-				Boolean newMsgGivenByUser = false;
-				// if the stack is empty, it is head node. User is not prompted
-				// the initial commit should not be skipped or modified either
-				if (interactive) {
-					Boolean allowSkip = true;
-					if (copiedNodes.isEmpty() || poppedNode.getParent() == null) {
-						// extreme nodes. Initial or final commit
-						allowSkip = false;
-					}
-					userResponse = confirmReplay(poppedNode, allowSkip);
-					if (userResponse instanceof Boolean) {
-						toProceed = ((Boolean) userResponse).booleanValue();
-						newMsgGivenByUser = false;
-					} else {
-						toProceed = true;
-						newMsgGivenByUser = true;
-					}
-				}
-				if (toProceed) { // invoke replay method
-					CommitNode replayed = poppedNode.replay(this);
-					if (newMsgGivenByUser)
-						replayed.setCommitMessage((String) userResponse);
-					replayed.getOldFiles().addAll(filesToPropogate);
-					replayed.setParent(currBranch.getHead());
-					currBranch.setHead(replayed);
-					this.trackCommit(replayed);
+			for (String fn : original.getDeletedFiles()) {
+				String renamed = renames.get(fn);
+				if ((renamed != null) && !ontoFiles.containsKey(fn)) {
+					fn = renamed;
 				}
+				deleted.add(fn);
+				added.remove(fn);
 			}
-			currBranch.checkout();
+			if (plan.getMessage(i) == null)
+				continue; // Skipped
+			newHead = original.replay(newHead, this.getNextCommitId(),
+					plan.getMessage(i), added.values(), deleted);
+			replayedNodes.add(newHead);
+			added.clear();
+			deleted.clear();
+		}
+		currBranch.setHead(newHead);
+		for (CommitNode replayed : replayedNodes) {
+			this.recordCommit(replayed);
 		}
+		currBranch.checkout(previousHead);
 	}
 
 	/**
@@ -578,7 +1162,8 @@ public class CommitTree implements Serializable, FileNameGenerator {
 	 * says "s", the method returns Boolean object False If the user says "m",
 	 * the method returns String with new message
 	 */
-	private Object confirmReplay(CommitNode repNode, boolean canSkip) {
+	private Object confirmReplay(CommitNode repNode, boolean canSkip,
+			Scanner scanner) {
 		// prompting user for their input
 		Object returnVal = null;
 		boolean looping = true;
@@ -587,7 +1172,8 @@ public class CommitTree implements Serializable, FileNameGenerator {
 			repNode.printLog();
 			System.out
 					.println("Would you like to (c)ontinue, (s)kip this commit, or change this commit's (m)essage? ");
-			Scanner scanner = new Scanner(System.in);
+			if (!scanner.hasNextLine())
+				return Boolean.TRUE; // No more answers. Continue.
 			String answer = scanner.nextLine();
 			switch (answer) {
 			case "s":
@@ -605,8 +1191,7 @@ public class CommitTree implements Serializable, FileNameGenerator {
 			case "m":
 				System.out
 						.println("Please enter a new message for this commit. ");
-				Scanner forMsg = new Scanner(System.in);
-				String newMsg = forMsg.nextLine();
+				String newMsg = scanner.nextLine();
 				returnVal = new String(newMsg);
 				looping = false;
 				break;
@@ -1,4 +0,0 @@
-
-public interface FileNameGenerator {
-    String getUniqueFileName(String extn);
-}
@@ -0,0 +1,139 @@
+import java.io.File;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Expands the paths given to add into the files they name. A path may be a
+ * file, a directory (every file below it, except the .gitlet directory), or
+ * a glob relative to the current directory such as "src/**.java".
+ * Directories are listed in parallel, each subdirectory as its own fork/join
+ * task. A glob is only walked as deep as it can match: "*.txt" lists the
+ * current directory alone, and only a glob with ** walks every level.
+ */
+public class FileWalker extends RecursiveTask<List<String>> {
+	private static final long serialVersionUID = 1L;
+
+	private final File dir;
+	private final PathMatcher matcher; // Null to take every file
+	private final int depth; // Levels of subdirectories to walk, -1 for all
+
+	private FileWalker(File dir, PathMatcher matcher, int depth) {
+		this.dir = dir;
+		this.matcher = matcher;
+		this.depth = depth;
+	}
+
+	/**
+	 * Returns the files named by the given paths, sorted and without
+	 * duplicates. Returns null if any of the paths names nothing.
+	 */
+	public static TreeSet<String> expand(List<String> paths) {
+		TreeSet<String> files = new TreeSet<String>();
+		for (String p : paths) {
+			String fileName = p.trim();
+			File f = new File(fileName);
+			List<String> found;
+			if (f.isFile()) {
+				files.add(fileName);
+				continue;
+			} else if (f.isDirectory()) {
+				found = ForkJoinPool.commonPool().invoke(
+						new FileWalker(f, null, -1));
+			} else if (isGlob(fileName)) {
+				found = ForkJoinPool.commonPool().invoke(
+						new FileWalker(globRoot(fileName), FileSystems
+								.getDefault().getPathMatcher(
+										"glob:" + fileName), globDepth(fileName)));
+			} else {
+				return null;
+			}
+			if (found.isEmpty()) {
+				return null;
+			}
+			files.addAll(found);
+		}
+		return files;
+	}
+
+	/**
+	 * Lists the files of this task's directory, and forks a task for each of
+	 * its subdirectories.
+	 */
+	@Override
+	protected List<String> compute() {
+		ArrayList<String> files = new ArrayList<String>();
+		File[] entries = dir.listFiles();
+		if (entries == null)
+			return files;
+		ArrayList<FileWalker> subTasks = new ArrayList<FileWalker>();
+		for (File entry : entries) {
+			if (entry.isDirectory()) {
+				if ((depth != 0) && !entry.getName().equals(".gitlet")) {
+					FileWalker sub = new FileWalker(entry, matcher,
+							(depth < 0) ? depth : depth - 1);
+					sub.fork();
+					subTasks.add(sub);
+				}
+			} else if (entry.isFile()) {
+				String fileName = Paths.get(entry.getPath()).normalize()
+						.toString();
+				if ((matcher == null) || matcher.matches(Paths.get(fileName))) {
+					files.add(fileName);
+				}
+			}
+		}
+		for (FileWalker sub : subTasks) {
+			files.addAll(sub.join());
+		}
+		return files;
+	}
+
+	/**
+	 * Returns true if the path contains glob characters
+	 */
+	private static boolean isGlob(String path) {
+		return path.matches(".*[*?\\[{].*");
+	}
+
+	/**
+	 * Returns how many levels of subdirectories below its root the glob can
+	 * match in, -1 if any number with **
+	 */
+	private static int globDepth(String glob) {
+		if (glob.contains("**"))
+			return -1;
+		int levels = 0;
+		boolean inRoot = true;
+		for (Path part : Paths.get(glob)) {
+			inRoot = inRoot && !isGlob(part.toString());
+			if (!inRoot)
+				++levels;
+		}
+		return Math.max(levels - 1, 0);
+	}
+
+	/**
+	 * Returns the deepest directory of the glob that contains no glob
+	 * characters, where the walk starts
+	 */
+	private static File globRoot(String glob) {
+		Path root = null;
+		for (Path part : Paths.get(glob)) {
+			if (isGlob(part.toString()))
+				break;
+			root = (root == null) ? part : root.resolve(part);
+		}
+		if (glob.startsWith("/")) {
+			root = (root == null) ? Paths.get("/") : Paths.get("/").resolve(
+					root);
+		}
+		return (root == null) ? new File(".") : root.toFile();
+	}
+}
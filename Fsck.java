@@ -0,0 +1,240 @@
+import java.io.File;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+/**
+ * Checks that a repository is consistent: that every blob in the object
+ * store still has the hash it is named after, that every file of every
+ * commit has its blob, that every commit's parent is in the tree and its
+ * history ends, and that every branch, HEAD and staged file points to
+ * something that exists. Blobs are read, decompressed and hashed as streams
+ * on a pool of workers, so the check is bound by the disk and never holds a
+ * whole blob in memory. Problems are printed as they are found, and so are
+ * the temporary files a crash left among the blobs.
+ */
+public class Fsck {
+	// Progress is printed every time this many more blobs are checked
+	private static final int PROGRESS_STEP = 1000;
+
+	private final CommitTree ctree;
+	private final ObjectStore store;
+	private int problems = 0;
+
+	/**
+	 * Construct the check of the given tree and its object store
+	 */
+	public Fsck(CommitTree ctree) {
+		this.ctree = ctree;
+		this.store = new ObjectStore(ctree.getLocation());
+	}
+
+	/**
+	 * Runs every check, printing the problems and a summary. Returns true if
+	 * there was no problem.
+	 */
+	public boolean run() {
+		HashSet<String> blobs = this.checkBlobs();
+		this.checkCommits(blobs);
+		this.checkRefs();
+		this.checkStaged(blobs);
+		if (this.problems == 0) {
+			System.out.println("No problems found.");
+		} else {
+			System.out.println("Found " + this.problems + " problem(s).");
+		}
+		return this.problems == 0;
+	}
+
+	/**
+	 * Hashes every blob in the object store on a pool of workers and returns
+	 * the hashes of those that are intact
+	 */
+	private HashSet<String> checkBlobs() {
+		ArrayList<String> hashes = new ArrayList<String>();
+		File[] dirs = new File(this.store.getLocation(ObjectStore.OBJECTS_DIR))
+				.listFiles();
+		if (dirs != null) {
+			for (File dir : dirs) {
+				String[] names = dir.list();
+				if (!dir.isDirectory() || (names == null))
+					continue;
+				for (String name : names) {
+					if (!name.startsWith(AtomicFile.TEMP_PREFIX))
+						hashes.add(dir.getName() + name);
+				}
+			}
+		}
+		System.out.println("Checking " + hashes.size() + " blob(s).");
+		for (File f : this.store.findLeftovers()) {
+			System.out.println("Leftover temporary file, deleted at the next"
+					+ " commit: " + f.getParentFile().getName() + "/"
+					+ f.getName());
+		}
+
+		WorkerPool pool = new WorkerPool();
+		ArrayList<Future<Boolean>> pending = new ArrayList<Future<Boolean>>();
+		for (final String hash : hashes) {
+			pending.add(pool.submit(new Callable<Boolean>() {
+				@Override
+				public Boolean call() throws Exception {
+					InputStream in = store.open(
+							ObjectStore.storedFileName(hash), true);
+					try {
+						return ObjectStore.hash(in).equals(hash);
+					} finally {
+						in.close();
+					}
+				}
+			}));
+		}
+		HashSet<String> intact = new HashSet<String>();
+		for (int i = 0; i < pending.size(); ++i) {
+			boolean ok;
+			try {
+				ok = pending.get(i).get();
+			} catch (Exception e) {
+				ok = false; // Unreadable, or not a compressed stream
+			}
+			if (ok) {
+				intact.add(hashes.get(i));
+			} else {
+				this.problem("Corrupt blob: " + hashes.get(i));
+			}
+			if (((i + 1) % PROGRESS_STEP == 0) && (i + 1 < pending.size())) {
+				System.out.println("Checked " + (i + 1) + " of "
+						+ pending.size() + " blobs.");
+			}
+		}
+		pool.shutdown();
+		return intact;
+	}
+
+	/**
+	 * Checks the parent chain of every commit and that the files it refers
+	 * to have their blobs
+	 */
+	private void checkCommits(HashSet<String> blobs) {
+		Collection<CommitNode> commits = this.ctree.getAllCommits();
+		System.out.println("Checking " + commits.size() + " commit(s).");
+		HashMap<String, Boolean> present = new HashMap<String, Boolean>();
+		boolean promised = (this.store.getPromisor() != null);
+		HashSet<CommitNode> ended = new HashSet<CommitNode>();
+		TreeMap<Long, CommitNode> byId = new TreeMap<Long, CommitNode>();
+		for (CommitNode cnode : commits) {
+			byId.put(cnode.getCommitId(), cnode);
+		}
+		for (CommitNode cnode : byId.values()) {
+			CommitNode parent = cnode.getParent();
+			if ((parent != null)
+					&& (this.ctree.getCommit(parent.getCommitId()) != parent)) {
+				this.problem("Commit " + cnode.getCommitId()
+						+ " has a parent that is not in the tree: "
+						+ parent.getCommitId());
+			} else if (!this.endsHistory(cnode, commits.size(), ended)) {
+				this.problem("The history of commit " + cnode.getCommitId()
+						+ " loops.");
+			}
+			for (StoredFile fInfo : cnode.getStoredFiles()) {
+				String name = fInfo.getStoredFileName();
+				Boolean found = present.get(name);
+				if (found == null) {
+					found = this.hasBlob(fInfo, blobs, promised);
+					present.put(name, found);
+				}
+				if (!found) {
+					this.problem("Commit " + cnode.getCommitId()
+							+ " refers to a missing blob: " + name + " ("
+							+ fInfo.getOriginalFileName() + ")");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Checks that every branch, fetched branch and HEAD points to a commit
+	 * in the tree
+	 */
+	private void checkRefs() {
+		TreeMap<String, Long> branches = this.ctree.getRefs().list();
+		TreeMap<String, Long> fetched = this.ctree.getRemoteRefs().list();
+		System.out.println("Checking " + (branches.size() + fetched.size())
+				+ " ref(s).");
+		for (String name : branches.keySet()) {
+			this.checkRef("Branch " + name, branches.get(name));
+		}
+		for (String name : fetched.keySet()) {
+			this.checkRef("Fetched branch " + name, fetched.get(name));
+		}
+		String head = this.ctree.getRefs().getHead();
+		if ((head == null) || !branches.containsKey(head)) {
+			this.problem("HEAD names a branch that does not exist: " + head);
+		}
+	}
+
+	/**
+	 * Checks that the files staged for addition have their blobs
+	 */
+	private void checkStaged(HashSet<String> blobs) {
+		boolean promised = (this.store.getPromisor() != null);
+		StagingIndex index = this.ctree.getStagingIndex();
+		for (String branch : this.ctree.getRefs().list().keySet()) {
+			for (StoredFile fInfo : index.getAdded(branch).values()) {
+				if (!this.hasBlob(fInfo, blobs, promised)) {
+					this.problem("A file staged in " + branch
+							+ " has a missing blob: " + fInfo.getStoredFileName()
+							+ " (" + fInfo.getOriginalFileName() + ")");
+				}
+			}
+		}
+	}
+
+	private void checkRef(String what, long commitId) {
+		if (this.ctree.getCommit(commitId) == null) {
+			this.problem(what + " points to a missing commit: " + commitId);
+		}
+	}
+
+	/**
+	 * Returns true if the blob of the file is intact, or, in a blobless
+	 * clone, left to the promisor. Files stored before blobs were hashed only
+	 * have to exist.
+	 */
+	private boolean hasBlob(StoredFile fInfo, HashSet<String> blobs,
+			boolean promised) {
+		String hash = fInfo.getContentHash();
+		if (hash == null) {
+			return new File(this.store.getLocation(fInfo.getStoredFileName()))
+					.isFile();
+		}
+		return blobs.contains(hash) || (promised && !this.store.contains(hash));
+	}
+
+	/**
+	 * Returns true if the parent chain of the commit ends within the given
+	 * number of commits. The commits whose chains are known to end are kept
+	 * in ended, so each chain is only walked once.
+	 */
+	private boolean endsHistory(CommitNode cnode, int commitCount,
+			HashSet<CommitNode> ended) {
+		ArrayList<CommitNode> walked = new ArrayList<CommitNode>();
+		for (CommitNode c = cnode; (c != null) && !ended.contains(c); c = c
+				.getParent()) {
+			if (walked.size() >= commitCount)
+				return false;
+			walked.add(c);
+		}
+		ended.addAll(walked);
+		return true;
+	}
+
+	private void problem(String description) {
+		System.out.println(description);
+		++this.problems;
+	}
+}
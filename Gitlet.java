@@ -1,91 +1,186 @@
+import java.util.Arrays;
+
 public class Gitlet {
 
 	/**
-	 * Main method controls the switch statements. It calls a GitHelper object
-	 * that calls the CommitTree object that does all of the work. If none of
-	 * the statements are hit, then you tell the user that he passed in invalid
-	 * arguments. If that's not the case either, then the user passed in nothing
-	 * and we give the appropriate message
+	 * Main method passes the arguments to the daemon of the repository, if
+	 * one is running, or else to run, with a new GitHelper object. If the
+	 * user passed in nothing we give the appropriate message
 	 */
 	public static void main(String[] args) {
 		if ((args != null) && (args.length != 0)) { // Make sure arguments are
 													// given
-			GitletHelper helper = new GitletHelper();
-			switch (args[0]) {
-			case "init":
-				helper.createGitlet();
-				break;
-
-			case "add":
-				if ((args.length >= 2) && (args[1] != null))
-					helper.add(args[1]);
-				break;
-
-			case "commit":
-				if ((args.length >= 2) && (args[1] != null)
-						&& (args[1].trim().length() != 0)) { // args is not null
-																// already.
-					helper.commit(args[1]);
-				} else
-					System.out.println("Please enter a commit message.");
-				break;
-
-			case "rm":
-				if ((args.length >= 2) && (args[1] != null)
-						&& (args[1].trim().length() != 0)) {
-					helper.remove(args[1]);
-				} else
-					System.out.println("No reason to remove the file.");
-				break;
-
-			case "log":
-				helper.log();
-				break;
-
-			case "global-log":
-				helper.globalLog();
-				break;
-
-			case "find":
-				helper.find(args[1]);
-				break;
-
-			case "status":
-				helper.status();
-				break;
-
-			case "checkout":
-				helper.checkout(args);
-				break;
-
-			case "branch":
-				helper.branch(args[1]);
-				break;
-
-			case "rm-branch":
+			if (!GitletServer.forward(args)) {
+				run(new GitletHelper(), args);
+			}
+		} else
+			System.out
+					.println("No argument was given.  Usage: java Gitelet [command] [parameters]");
+	}
+
+	/**
+	 * Controls the switch statements. It calls the GitHelper object that
+	 * calls the CommitTree object that does all of the work. If none of the
+	 * statements are hit, then you tell the user that he passed in invalid
+	 * arguments. Batch mode runs each of its commands through here with the
+	 * same helper. The command runs under the repository lock.
+	 */
+	public static void run(GitletHelper helper, String[] args) {
+		if (args.length == 0) {
+			return;
+		}
+		RepoLock lock = RepoLock.acquire(args);
+		if (lock == null) {
+			return; // Another process holds the repository
+		}
+		try {
+			dispatch(helper, args);
+		} finally {
+			lock.release();
+		}
+	}
+
+	/**
+	 * Runs the command named by the first argument
+	 */
+	private static void dispatch(GitletHelper helper, String[] args) {
+		switch (args[0]) {
+		case "init":
+			helper.createGitlet();
+			break;
+
+		case "add":
+			if ((args.length >= 2) && (args[1] != null))
+				helper.add(Arrays.copyOfRange(args, 1, args.length));
+			break;
+
+		case "commit":
+			if ((args.length >= 2) && (args[1] != null)
+					&& (args[1].trim().length() != 0)) { // args is not null
+															// already.
+				helper.commit(args[1]);
+			} else
+				System.out.println("Please enter a commit message.");
+			break;
+
+		case "rm":
+			if ((args.length >= 2) && (args[1] != null)
+					&& (args[1].trim().length() != 0)) {
 				helper.remove(args[1]);
-				break;
+			} else
+				System.out.println("No reason to remove the file.");
+			break;
+
+		case "log":
+			helper.log();
+			break;
+
+		case "global-log":
+			helper.globalLog();
+			break;
+
+		case "find":
+			helper.find(args[1]);
+			break;
+
+		case "status":
+			helper.status();
+			break;
+
+		case "checkout":
+			helper.checkout(args);
+			break;
 
-			case "reset":
-				helper.reset(args[1]);
-				break;
+		case "branch":
+			helper.branch(args[1]);
+			break;
 
-			case "merge":
-				helper.merge(args[1]);
-				break;
+		case "rm-branch":
+			helper.removeBranch(args.length > 1 ? args[1] : null);
+			break;
 
-			case "rebase":
-				helper.rebase(args[1]);
-				break;
+		case "fsck":
+			helper.fsck();
+			break;
 
-			case "i-rebase":
+		case "pack-refs":
+			helper.packRefs();
+			break;
+
+		case "reset":
+			helper.reset(args[1]);
+			break;
+
+		case "merge":
+			helper.merge(args[1]);
+			break;
+
+		case "rebase":
+			helper.rebase(args[1]);
+			break;
+
+		case "i-rebase":
+			if ((args.length > 3) && args[2].equals("--plan")) {
+				helper.interactiveRebase(args[1], args[3]);
+			} else {
 				helper.interactiveRebase(args[1]);
-				break;
-			default:
-				System.out.println("Invalid argument(s)");
 			}
-		} else
-			System.out
-					.println("No argument was given.  Usage: java Gitelet [command] [parameters]");
+			break;
+
+		case "cherry-pick":
+			helper.cherryPick((args.length > 1) ? args[1] : null);
+			break;
+
+		case "rebase-plan":
+			helper.rebasePlan(args);
+			break;
+
+		case "add-remote":
+			helper.addRemote(args);
+			break;
+
+		case "rm-remote":
+			helper.removeRemote((args.length > 1) ? args[1] : null);
+			break;
+
+		case "clone":
+			helper.cloneRepository(args);
+			break;
+
+		case "fetch":
+			helper.fetch(args);
+			break;
+
+		case "push":
+			helper.push(args);
+			break;
+
+		case "bundle":
+			helper.bundle(args);
+			break;
+
+		case "sparse-checkout":
+			helper.sparseCheckout(args);
+			break;
+
+		case "batch":
+			helper.batch((args.length >= 2) ? args[1] : null);
+			break;
+
+		case "checkpoint":
+			helper.checkpoint();
+			break;
+
+		case "cache-stats":
+			BlobCache.getInstance().printStats();
+			break;
+
+		case "daemon":
+			GitletServer.daemon(args);
+			break;
+
+		default:
+			System.out.println("Invalid argument(s)");
+		}
 	}
 }
@@ -1,7 +1,118 @@
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Scanner;
+import java.util.TreeSet;
 
 public class GitletHelper {
+	// While a session is open (batch mode or the daemon) all commands share
+	// one CommitTree, which is saved at checkpoints
+	private boolean inSession = false;
+	private CommitTree sessionTree = null;
+	private boolean sessionTreeChanged = false;
+	private boolean sessionStateChanged = false;
+
+	private boolean inBatch = false;
+	private boolean confirmAll = false; // Scripts cannot answer prompts
+
+	/**
+	 * Starts sharing one CommitTree between the following commands
+	 */
+	public void beginSession() {
+		this.inSession = true;
+	}
+
+	/**
+	 * Saves the shared CommitTree if needed and stops sharing it
+	 */
+	public void endSession() {
+		checkpoint();
+		this.inSession = false;
+		this.sessionTree = null;
+	}
+
+	/**
+	 * Drops the shared CommitTree and its unsaved changes, after a command
+	 * failed part way, so that the next command reads the published one
+	 */
+	public void discardSession() {
+		this.sessionTree = null;
+		this.sessionTreeChanged = false;
+		this.sessionStateChanged = false;
+	}
+
+	/**
+	 * Loads the CommitTree of the current directory. In a session it is only
+	 * read again if another process published a newer generation, and its
+	 * branches and staged files if another process may have changed them.
+	 */
+	private CommitTree loadTree() {
+		TreeStore store = TreeStore.current();
+		if (this.inSession && (this.sessionTree != null)
+				&& (this.sessionTreeChanged || (store.currentGeneration() == this.sessionTree
+						.getGeneration()))) {
+			if (!this.sessionTreeChanged && !this.sessionStateChanged) {
+				// Read again when needed
+				this.sessionTree.setRefs(null);
+				this.sessionTree.setStagingIndex(null);
+			}
+			return this.sessionTree;
+		}
+		CommitTree ctree = store.load();
+		if (this.inSession) {
+			this.sessionTree = ctree;
+		}
+		return ctree;
+	}
+
+	/**
+	 * Serializes the CommitTree. In a session it is only marked as changed
+	 * and written at the next checkpoint.
+	 */
+	private void saveTree(CommitTree ctree) {
+		if (this.inSession) {
+			this.sessionTreeChanged = true;
+		} else {
+			ctree.save();
+		}
+	}
+
+	/**
+	 * Writes only the branches and staged files of the CommitTree. In a
+	 * session they are only marked as changed and written at the next
+	 * checkpoint.
+	 */
+	private void saveState(CommitTree ctree) {
+		if (this.inSession) {
+			this.sessionStateChanged = true;
+		} else {
+			ctree.saveState();
+		}
+	}
+
+	/**
+	 * Writes the session's CommitTree, or just its branches and staged files,
+	 * if any command changed it
+	 */
+	public void checkpoint() {
+		if (this.inSession && (this.sessionTree != null)) {
+			boolean saved = true;
+			if (this.sessionTreeChanged) {
+				saved = this.sessionTree.save();
+			} else if (this.sessionStateChanged) {
+				saved = this.sessionTree.saveState();
+			}
+			if (!saved) {
+				this.sessionTree = null; // Read the published one again
+			}
+		}
+		this.sessionTreeChanged = false;
+		this.sessionStateChanged = false;
+	}
 
 	/**
 	 * Called when "init" is passed in. The method creates a new .gitlet
@@ -28,6 +139,9 @@ public class GitletHelper {
 				CommitTree ctree = new CommitTree(x.getAbsolutePath());
 				// Create Commit tree with an initial commit
 				ctree.save(); // Serialize the CommitTree
+				if (this.inSession) {
+					this.sessionTree = ctree;
+				}
 			} catch (Exception e) {
 				System.out.println("Could not create directory: "
 						+ gitletParent + "/.gitlet");
@@ -36,24 +150,28 @@ public class GitletHelper {
 	}
 
 	/**
-	 * A fileToAdd is created with the name of the file passed. If the file does
-	 * not exist or if it's a directory, then the file doesn't exist Else, you
-	 * load (deserialize) the commit tree and you invoke its add method Then
-	 * serialize the tree
+	 * The paths are expanded into files: a directory stands for every file
+	 * below it and a glob for every file it matches. If any path names no
+	 * file, nothing is added. Else, you load (deserialize) the commit tree
+	 * once, stage all the files, and serialize the tree once.
 	 */
-	public void add(String argPassed) {
-		// Check if the file exists in the working directory
-		String fileName = argPassed.trim();
-		File fileToAdd = new File(fileName);
-		if (!fileToAdd.exists() || fileToAdd.isDirectory()) {
+	public void add(String... argsPassed) {
+		TreeSet<String> filesToAdd = FileWalker.expand(Arrays
+				.asList(argsPassed));
+		if (filesToAdd == null) {
 			System.out.println("File does not exist.");
 			return;
 		}
-		CommitTree ctree = CommitTree.loadCommitTree(System
-				.getProperty("user.dir") + "/.gitlet/ctree.ser");
+		CommitTree ctree = loadTree();
 		if (ctree != null) {
-			ctree.getCurrentBranch().add(fileName);
-			ctree.save(); // Store the tree as the job is done.
+			if ((argsPassed.length == 1) && (filesToAdd.size() == 1)
+					&& new File(argsPassed[0].trim()).isFile()) {
+				// A single named file: tell the user if it is unchanged
+				ctree.getCurrentBranch().add(filesToAdd.first());
+			} else {
+				ctree.getCurrentBranch().add(filesToAdd);
+			}
+			saveState(ctree); // Only the staged files changed
 		}
 	}
 
@@ -63,8 +181,7 @@ public class GitletHelper {
 	 */
 	public void log() {
 		// Load the CommitTree from the .gitlet subdirectory
-		CommitTree ctree = CommitTree.loadCommitTree(System
-				.getProperty("user.dir") + "/.gitlet/ctree.ser");
+		CommitTree ctree = loadTree();
 		if (ctree != null) {
 			ctree.getCurrentBranch().printCommitLog();
 		}
@@ -74,8 +191,7 @@ public class GitletHelper {
 	 * Same as log, but invokes globalLog() method
 	 */
 	public void globalLog() {
-		CommitTree ctree = CommitTree.loadCommitTree(System
-				.getProperty("user.dir") + "/.gitlet/ctree.ser");
+		CommitTree ctree = loadTree();
 		if (ctree != null) {
 			ctree.globalLog();
 		}
@@ -85,8 +201,7 @@ public class GitletHelper {
 	 * Same as before, but invokes showStatus() method
 	 */
 	public void status() {
-		CommitTree ctree = CommitTree.loadCommitTree(System
-				.getProperty("user.dir") + "/.gitlet/ctree.ser");
+		CommitTree ctree = loadTree();
 		if (ctree != null) {
 			ctree.showStatus();
 		}
@@ -102,8 +217,7 @@ public class GitletHelper {
 			System.out.println("Found no commit with that message.");
 			return;
 		}
-		CommitTree ctree = CommitTree.loadCommitTree(System
-				.getProperty("user.dir") + "/.gitlet/ctree.ser");
+		CommitTree ctree = loadTree();
 		if (ctree != null) {
 			ctree.find(msg);
 		}
@@ -115,6 +229,9 @@ public class GitletHelper {
 	 * otherwise.
 	 */
 	private boolean promptDanger(Scanner sc) {
+		if (this.confirmAll) {
+			return true; // Scripts cannot answer prompts
+		}
 		System.out
 				.println("Warning: The command you entered may alter the files in your working directory.\n "
 						+ "Uncommitted changes may be lost. Are you sure you want to continue? (yes/no)");
@@ -131,35 +248,212 @@ public class GitletHelper {
 
 	/**
 	 * Same as find(msg), but we do so with a branch instead, and invoke
-	 * CommitTree's addBranch(branch) method. Since the tree is changed, we have
-	 * to serailize it again.
+	 * CommitTree's addBranch(branch) method. Only the branches are changed, so
+	 * only they are written again.
 	 */
 	public void branch(String branch) {
 		if (branch == null) {
 			System.out.println("No branch name given.");
 			return;
 		} else {
-			CommitTree ctree = CommitTree.loadCommitTree(System
-					.getProperty("user.dir") + "/.gitlet/ctree.ser");
+			CommitTree ctree = loadTree();
 			if (ctree != null) {
 				ctree.addBranch(branch);
-				ctree.save();
+				saveState(ctree);
 			}
 		}
 	}
 
 	/**
-	 * Same as branch, except it's called from a static context, so a CommitTree
-	 * is passed in as well
+	 * Same as branch, but invokes CommitTree's removeBranch(branch) method.
 	 */
-	public static void removeBranch(CommitTree ctree, String branch) {
+	public void removeBranch(String branch) {
 		if (branch == null) {
 			System.out.println("No branch name given.");
 			return;
 		} else {
+			CommitTree ctree = loadTree();
 			if (ctree != null) {
 				ctree.removeBranch(branch);
-				ctree.save();
+				saveState(ctree);
+			}
+		}
+	}
+
+	/**
+	 * Adds a remote repository on a local path, given as the name and the
+	 * path after the command
+	 */
+	public void addRemote(String[] args) {
+		if (args.length < 3) {
+			System.out.println("Please enter a remote name and path.");
+			return;
+		}
+		new Remotes(System.getProperty("user.dir") + "/.gitlet").add(args[1],
+				args[2]);
+	}
+
+	/**
+	 * Removes a remote
+	 */
+	public void removeRemote(String name) {
+		if (name == null) {
+			System.out.println("Please enter a remote name.");
+			return;
+		}
+		new Remotes(System.getProperty("user.dir") + "/.gitlet").remove(name);
+	}
+
+	/**
+	 * Clones the repository on the path given after the command into the
+	 * current directory, which must not have one. With "--depth N" only the
+	 * last N commits of its current branch are brought. With "--blobless" no
+	 * file contents are; they are fetched from the repository when needed.
+	 * The repository is added as the remote "origin", and the branch is
+	 * checked out.
+	 */
+	public void cloneRepository(String[] args) {
+		String source = null;
+		int depth = 0;
+		boolean blobless = false;
+		for (int i = 1; i < args.length; ++i) {
+			if (args[i].equals("--blobless")) {
+				blobless = true;
+			} else if (args[i].equals("--depth") && (i + 1 < args.length)) {
+				try {
+					depth = Integer.parseInt(args[++i]);
+				} catch (NumberFormatException e) {
+					depth = -1;
+				}
+				if (depth <= 0) {
+					System.out.println("Please enter a positive depth.");
+					return;
+				}
+			} else {
+				source = args[i];
+			}
+		}
+		if (source == null) {
+			System.out.println("Please enter the path of a repository.");
+			return;
+		}
+		String gitletParent = System.getProperty("user.dir");
+		File f = new File(gitletParent + "/.gitlet");
+		if (f.exists()) {
+			System.out
+					.println("A gitlet version control system already exists in the current directory.");
+			return;
+		}
+		String sourceDir = Remotes.gitletDir(source);
+		if (!new File(sourceDir).isDirectory()) {
+			System.out.println("Remote directory not found.");
+			return;
+		}
+		CommitTree sourceTree = new TreeStore(sourceDir).load();
+		if (sourceTree == null)
+			return;
+		f.mkdir();
+		if (blobless) {
+			try {
+				new ObjectStore(f.getPath()).setPromisor(sourceDir);
+			} catch (IOException e) {
+				System.out.println("Could not write promisor to: " + f.getPath());
+				return;
+			}
+		}
+		CommitTree ctree = CommitTree.cloneFrom(f.getPath(), sourceTree, depth,
+				blobless);
+		if ((ctree == null) || !ctree.save()) {
+			return;
+		}
+		new Remotes(f.getPath()).add("origin", sourceDir);
+		ctree.getCurrentBranch().checkout();
+		if (this.inSession) {
+			this.sessionTree = ctree;
+		}
+	}
+
+	/**
+	 * Fetches a branch of a remote, given as the remote and branch names
+	 * after the command. The commits fetched are added to the tree, so it is
+	 * serialized again.
+	 */
+	public void fetch(String[] args) {
+		if (args.length < 3) {
+			System.out.println("Please enter a remote name and branch name.");
+			return;
+		}
+		CommitTree ctree = loadTree();
+		if (ctree != null) {
+			ctree.fetch(args[1], args[2]);
+			saveTree(ctree);
+		}
+	}
+
+	/**
+	 * Pushes the current branch to a branch of a remote, given as the remote
+	 * and branch names after the command. The remote is saved by the push;
+	 * here only the uids computed for it and the fetched branch are saved.
+	 */
+	public void push(String[] args) {
+		if (args.length < 3) {
+			System.out.println("Please enter a remote name and branch name.");
+			return;
+		}
+		CommitTree ctree = loadTree();
+		if (ctree != null) {
+			ctree.push(args[1], args[2]);
+			saveTree(ctree);
+		}
+	}
+
+	/**
+	 * Writes or reads a bundle file: "create <file> <branch> [base commit
+	 * id]" or "unbundle <file>" after the command. Unbundling adds commits,
+	 * so the tree is serialized again.
+	 */
+	public void bundle(String[] args) {
+		boolean create = (args.length >= 4) && args[1].equals("create");
+		boolean unbundle = (args.length == 3) && args[1].equals("unbundle");
+		if (!create && !unbundle) {
+			System.out
+					.println("Please enter create <file> <branch> [base] or unbundle <file>.");
+			return;
+		}
+		CommitTree ctree = loadTree();
+		if (ctree == null)
+			return;
+		if (create) {
+			ctree.createBundle(args[2], args[3], (args.length > 4) ? args[4]
+					: null);
+		} else {
+			ctree.unbundle(args[2]);
+			saveTree(ctree);
+		}
+	}
+
+	/**
+	 * Checks the blobs, commits, branches and staged files of the repository,
+	 * see Fsck
+	 */
+	public void fsck() {
+		CommitTree ctree = loadTree();
+		if (ctree != null) {
+			new Fsck(ctree).run();
+		}
+	}
+
+	/**
+	 * Moves every branch into one packed file
+	 */
+	public void packRefs() {
+		CommitTree ctree = loadTree();
+		if (ctree != null) {
+			checkpoint(); // A session's changes go first
+			if (this.inSession && (this.sessionTree == null))
+				return; // They could not be saved
+			if (ctree.saveState()) {
+				ctree.getRefs().pack();
 			}
 		}
 	}
@@ -169,27 +463,81 @@ public class GitletHelper {
 	 * give the user the appropriate message and return. Else, we prompt the
 	 * user, letting him/her know that the method is dangerous, and load the
 	 * commitTree and invoke the rebase method with the boolean value true, to
-	 * denote that it is interactive. We then serialize the tree.
+	 * denote that it is interactive. We then serialize the tree. A batch
+	 * reads its commands from the same input, so it must give a plan.
 	 */
 	public void interactiveRebase(String toBranch) {
 		CommitTree ctree = null;
 		if (toBranch == null) {
 			System.out.println("No branch is given.");
 			return;
+		} else if (this.inBatch) {
+			System.out.println("An interactive rebase in a batch needs a plan:"
+					+ " i-rebase [branch] --plan [file]");
+			return;
 		} else {
 			Scanner scanner = new Scanner(System.in);
 			if (promptDanger(scanner)) {
-				ctree = CommitTree.loadCommitTree(System
-						.getProperty("user.dir") + "/.gitlet/ctree.ser");
+				ctree = loadTree();
 				if (ctree != null) {
 					// on interactive mode
-					ctree.rebase(toBranch, true);
-					ctree.save();
+					ctree.rebase(toBranch, scanner, null);
+					saveTree(ctree);
 				}
 			}
 		}
 	}
 
+	/**
+	 * Cherry-pick is dangerous, as it writes the files the commit changed. We
+	 * prompt the user, load the CommitTree and invoke its cherryPick method.
+	 */
+	public void cherryPick(String commitIdStr) {
+		if (commitIdStr == null) {
+			System.out.println("No commit ID is given.");
+			return;
+		}
+		Scanner scanner = new Scanner(System.in);
+		if (promptDanger(scanner)) {
+			CommitTree ctree = loadTree();
+			if (ctree != null) {
+				ctree.cherryPick(commitIdStr);
+				saveTree(ctree);
+			}
+		}
+	}
+
+	/**
+	 * Interactive rebase that follows the rebase plan in the given file
+	 * instead of prompting for every commit
+	 */
+	public void interactiveRebase(String toBranch, String planFileName) {
+		Scanner scanner = new Scanner(System.in);
+		if (promptDanger(scanner)) {
+			CommitTree ctree = loadTree();
+			if (ctree != null) {
+				ctree.rebase(toBranch, null, planFileName);
+				saveTree(ctree);
+			}
+		}
+	}
+
+	/**
+	 * Handles "rebase-plan <branch> [file]". Writes the plan that i-rebase
+	 * would follow to the file, or prints it, so that it can be edited and
+	 * given to "i-rebase <branch> --plan <file>".
+	 */
+	public void rebasePlan(String[] args) {
+		if (args.length < 2) {
+			System.out.println("No branch is given.");
+			return;
+		}
+		CommitTree ctree = loadTree();
+		if (ctree != null) {
+			ctree.writeRebasePlan(args[1], (args.length > 2) ? args[2] : null);
+		}
+	}
+
 	/**
 	 * Same as interactiveRebase, but the boolean value is false, to denote that
 	 * it is NOT interactive
@@ -201,12 +549,11 @@ public class GitletHelper {
 		}
 		Scanner scanner = new Scanner(System.in);
 		if (promptDanger(scanner)) {
-			CommitTree ctree = CommitTree.loadCommitTree(System
-					.getProperty("user.dir") + "/.gitlet/ctree.ser");
+			CommitTree ctree = loadTree();
 			if (ctree != null) {
 				// on interactive mode
-				ctree.rebase(toBranch, false);
-				ctree.save();
+				ctree.rebase(toBranch, null, null);
+				saveTree(ctree);
 			}
 		}
 	}
@@ -214,7 +561,8 @@ public class GitletHelper {
 	/**
 	 * Merge is also dangerous and so we check for the null case, and if that
 	 * does not return, we prompt the User. We then load the CommitTree object
-	 * and invoke its merge method on the argument passed in
+	 * and invoke its merge method on the argument passed in. The result is
+	 * only staged, so only the staged files are written.
 	 */
 	public void merge(String branch) {
 		if (branch == null) {
@@ -223,11 +571,10 @@ public class GitletHelper {
 		} else {
 			Scanner scanner = new Scanner(System.in);
 			if (promptDanger(scanner)) {
-				CommitTree ctree = CommitTree.loadCommitTree(System
-						.getProperty("user.dir") + "/.gitlet/ctree.ser");
+				CommitTree ctree = loadTree();
 				if (ctree != null) {
 					ctree.merge(branch);
-					ctree.save();
+					saveState(ctree);
 				}
 			}
 		}
@@ -239,11 +586,10 @@ public class GitletHelper {
 	 * serialize the tree.
 	 */
 	public void commit(String msg) {
-		CommitTree ctree = CommitTree.loadCommitTree(System
-				.getProperty("user.dir") + "/.gitlet/ctree.ser");
+		CommitTree ctree = loadTree();
 		if (ctree != null) {
 			ctree.getCurrentBranch().commit(msg);
-			ctree.save(); // Store the tree as the job is done.
+			saveTree(ctree); // Store the tree as the job is done.
 		}
 	}
 
@@ -251,11 +597,10 @@ public class GitletHelper {
 	 * Same as before except invoke the remove(name) method of CommitTree
 	 */
 	public void remove(String name) {
-		CommitTree ctree = CommitTree.loadCommitTree(System
-				.getProperty("user.dir") + "/.gitlet/ctree.ser");
+		CommitTree ctree = loadTree();
 		if (ctree != null) {
 			ctree.getCurrentBranch().remove(name);
-			ctree.save(); // Store the tree as the job is done.
+			saveState(ctree); // Only the staged files changed
 		}
 	}
 
@@ -269,15 +614,14 @@ public class GitletHelper {
 	public void checkout(String[] args) {
 		Scanner scanner = new Scanner(System.in);
 		if (promptDanger(scanner)) {
-			CommitTree ctree = CommitTree.loadCommitTree(System
-					.getProperty("user.dir") + "/.gitlet/ctree.ser");
+			CommitTree ctree = loadTree();
 			if (ctree != null) {
 				if (args.length > 2) {
 					ctree.checkout(args[1], args[2]);
 				} else {
 					ctree.checkout(args[1]);
 				}
-				ctree.save();
+				saveState(ctree);
 			}
 		}
 	}
@@ -295,13 +639,149 @@ public class GitletHelper {
 		} else {
 			Scanner scanner = new Scanner(System.in);
 			if (promptDanger(scanner)) {
-				CommitTree ctree = CommitTree.loadCommitTree(System
-						.getProperty("user.dir") + "/.gitlet/ctree.ser");
+				CommitTree ctree = loadTree();
 				if (ctree != null) {
 					ctree.reset(commitIdStr);
-					ctree.save();
+					saveState(ctree);
 				}
 			}
 		}
 	}
+
+	/**
+	 * Sparse checkout has three sub commands. "set" restricts the working
+	 * directory to the given patterns and "disable" brings back every file;
+	 * both alter the working directory, so the user is prompted. "list"
+	 * prints the patterns.
+	 */
+	public void sparseCheckout(String[] args) {
+		if (args.length < 2) {
+			System.out.println("Usage: sparse-checkout set|list|disable [patterns]");
+			return;
+		}
+		ArrayList<String> patterns = new ArrayList<String>();
+		switch (args[1]) {
+		case "set":
+			patterns.addAll(Arrays.asList(args).subList(2, args.length));
+			if (patterns.isEmpty()) {
+				System.out.println("No patterns given.");
+				return;
+			}
+			break;
+		case "disable":
+			break;
+		case "list":
+			CommitTree ctree = loadTree();
+			if (ctree != null) {
+				ctree.showSparseCheckout();
+			}
+			return;
+		default:
+			System.out.println("Usage: sparse-checkout set|list|disable [patterns]");
+			return;
+		}
+		Scanner scanner = new Scanner(System.in);
+		if (promptDanger(scanner)) {
+			CommitTree ctree = loadTree();
+			if (ctree != null) {
+				ctree.setSparseCheckout(patterns);
+			}
+		}
+	}
+
+	/**
+	 * Runs the gitlet commands read from the given file, or from standard
+	 * input if fileName is null or "-". Each line is one command with its
+	 * arguments, separated by spaces; arguments containing spaces are
+	 * quoted. Blank lines and lines starting with # are ignored. All commands
+	 * share one CommitTree, which is written at every "checkpoint" line and
+	 * at the end. Dangerous commands are not prompted for, and commands that
+	 * would read answers from the input are refused.
+	 */
+	public void batch(String fileName) {
+		if (this.inBatch) {
+			System.out.println("Cannot run a batch from a batch.");
+			return;
+		}
+		BufferedReader reader = null;
+		boolean ownSession = !this.inSession;
+		if (ownSession) {
+			beginSession();
+		}
+		this.inBatch = true;
+		this.confirmAll = true;
+		try {
+			if ((fileName == null) || fileName.equals("-")) {
+				reader = new BufferedReader(new InputStreamReader(System.in));
+			} else {
+				reader = new BufferedReader(new FileReader(fileName));
+			}
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if ((line.length() == 0) || line.startsWith("#"))
+					continue;
+				try {
+					Gitlet.run(this, tokenize(line));
+				} catch (Exception e) {
+					System.out.println("Invalid argument(s): " + line);
+				}
+			}
+		} catch (IOException e) {
+			System.out.println("Could not read commands from: "
+					+ ((fileName == null) ? "standard input" : fileName));
+		} finally {
+			this.inBatch = false;
+			this.confirmAll = false;
+			if (ownSession) {
+				endSession();
+			} else {
+				checkpoint();
+			}
+			if ((reader != null) && (fileName != null)
+					&& !fileName.equals("-")) {
+				try {
+					reader.close();
+				} catch (IOException e) {
+					// Nothing left to read
+				}
+			}
+		}
+	}
+
+	/**
+	 * Splits a batch line into arguments. Single or double quotes group
+	 * words containing spaces.
+	 */
+	private static String[] tokenize(String line) {
+		ArrayList<String> tokens = new ArrayList<String>();
+		StringBuilder current = new StringBuilder();
+		boolean inToken = false;
+		char quote = 0;
+		for (char c : line.toCharArray()) {
+			if (quote != 0) {
+				if (c == quote) {
+					quote = 0;
+				} else {
+					current.append(c);
+				}
+			} else if ((c == '"') || (c == '\'')) {
+				quote = c;
+				inToken = true;
+			} else if (Character.isWhitespace(c)) {
+				if (inToken) {
+					tokens.add(current.toString());
+					current.setLength(0);
+					inToken = false;
+				}
+			} else {
+				current.append(c);
+				inToken = true;
+			}
+		}
+		if (inToken) {
+			tokens.add(current.toString());
+		}
+		return tokens.toArray(new String[tokens.size()]);
+	}
 }
@@ -150,6 +150,726 @@ public class GitletPublicTest {
 		assertEquals(wugText, getText(wugFileName));
 	}
 
+	/**
+	 * Tests that edits to different lines of the same file in two branches are
+	 * combined by merge.
+	 */
+	@Test
+	public void testMergeCombinesEdits() {
+		String wugFileName = TESTING_DIR + "wug.txt";
+		createFile(wugFileName, "a\nb\nc\n");
+		gitlet("init");
+		gitlet("add", wugFileName);
+		gitlet("commit", "added wug");
+		gitlet("branch", "other");
+		writeFile(wugFileName, "A\nb\nc\n");
+		gitlet("add", wugFileName);
+		gitlet("commit", "changed first line");
+		gitlet("checkout", "other");
+		writeFile(wugFileName, "a\nb\nC\n");
+		gitlet("add", wugFileName);
+		gitlet("commit", "changed last line");
+		gitlet("checkout", "master");
+		gitlet("merge", "other");
+		assertEquals("A\nb\nC\n", getText(wugFileName));
+	}
+
+	/**
+	 * Tests that overlapping edits in two branches are left in the file
+	 * between conflict markers.
+	 */
+	@Test
+	public void testMergeConflictMarkers() {
+		String wugFileName = TESTING_DIR + "wug.txt";
+		createFile(wugFileName, "a\nb\nc\n");
+		gitlet("init");
+		gitlet("add", wugFileName);
+		gitlet("commit", "added wug");
+		gitlet("branch", "other");
+		writeFile(wugFileName, "a\nmaster\nc\n");
+		gitlet("add", wugFileName);
+		gitlet("commit", "changed in master");
+		gitlet("checkout", "other");
+		writeFile(wugFileName, "a\nother\nc\n");
+		gitlet("add", wugFileName);
+		gitlet("commit", "changed in other");
+		gitlet("checkout", "master");
+		String output = gitlet("merge", "other");
+		assertTrue(output.contains("Encountered a merge conflict."));
+		assertEquals("a\n<<<<<<< HEAD\nmaster\n=======\nother\n"
+				+ ">>>>>>> other\nc\n", getText(wugFileName));
+	}
+
+	/**
+	 * Tests that an edit made in one branch follows the file when it is
+	 * renamed in the other branch.
+	 */
+	@Test
+	public void testMergeFollowsRename() {
+		String wugFileName = TESTING_DIR + "wug.txt";
+		String movedFileName = TESTING_DIR + "moved.txt";
+		String text = "one\ntwo\nthree\nfour\nfive\nsix\n";
+		createFile(wugFileName, text);
+		gitlet("init");
+		gitlet("add", wugFileName);
+		gitlet("commit", "added wug");
+		gitlet("branch", "other");
+		createFile(movedFileName, text);
+		new File(wugFileName).delete();
+		gitlet("rm", wugFileName);
+		gitlet("add", movedFileName);
+		gitlet("commit", "moved wug");
+		gitlet("checkout", "other");
+		writeFile(wugFileName, "one\ntwo\nthree\nfour\nfive\nSIX\n");
+		gitlet("add", wugFileName);
+		gitlet("commit", "changed wug");
+		gitlet("checkout", "master");
+		gitlet("merge", "other");
+		assertEquals("one\ntwo\nthree\nfour\nfive\nSIX\n",
+				getText(movedFileName));
+	}
+
+	/**
+	 * Tests that a file renamed only in the given branch is moved by the
+	 * merge, with an edit made in the current branch, and that the move is
+	 * staged.
+	 */
+	@Test
+	public void testMergeTakesTheirRename() {
+		String wugFileName = TESTING_DIR + "d/x.txt";
+		String movedFileName = TESTING_DIR + "d/y.txt";
+		String text = "one\ntwo\nthree\nfour\nfive\nsix\n";
+		new File(TESTING_DIR + "d").mkdirs();
+		createFile(wugFileName, text);
+		gitlet("init");
+		gitlet("add", wugFileName);
+		gitlet("commit", "added wug");
+		gitlet("branch", "other");
+		gitlet("checkout", "other");
+		createFile(movedFileName, text);
+		new File(wugFileName).delete();
+		gitlet("rm", wugFileName);
+		gitlet("add", movedFileName);
+		gitlet("commit", "moved wug");
+		gitlet("checkout", "master");
+		gitlet("merge", "other");
+		assertEquals(text, getText(movedFileName));
+		assertTrue(!new File(wugFileName).exists());
+		gitlet("commit", "merged");
+		gitlet("checkout", "other");
+		gitlet("checkout", "master");
+		assertEquals(text, getText(movedFileName));
+		assertTrue(!new File(wugFileName).exists());
+	}
+
+	/**
+	 * Tests that an edit made in the current branch follows the file when
+	 * the given branch renamed it.
+	 */
+	@Test
+	public void testMergeTakesTheirRenameWithOurEdit() {
+		String wugFileName = TESTING_DIR + "d/x.txt";
+		String movedFileName = TESTING_DIR + "d/y.txt";
+		String text = "one\ntwo\nthree\nfour\nfive\nsix\n";
+		String edited = "one\ntwo\nthree\nfour\nfive\nSIX\n";
+		new File(TESTING_DIR + "d").mkdirs();
+		createFile(wugFileName, text);
+		gitlet("init");
+		gitlet("add", wugFileName);
+		gitlet("commit", "added wug");
+		gitlet("branch", "other");
+		gitlet("checkout", "other");
+		createFile(movedFileName, text);
+		new File(wugFileName).delete();
+		gitlet("rm", wugFileName);
+		gitlet("add", movedFileName);
+		gitlet("commit", "moved wug");
+		gitlet("checkout", "master");
+		writeFile(wugFileName, edited);
+		gitlet("add", wugFileName);
+		gitlet("commit", "changed wug");
+		gitlet("merge", "other");
+		assertEquals(edited, getText(movedFileName));
+		assertTrue(!new File(wugFileName).exists());
+		gitlet("commit", "merged");
+		gitlet("checkout", "other");
+		gitlet("checkout", "master");
+		assertEquals(edited, getText(movedFileName));
+		assertTrue(!new File(wugFileName).exists());
+	}
+
+	/**
+	 * Tests that checking out a branch deletes files the branch does not
+	 * track and leaves files with the same contents untouched.
+	 */
+	@Test
+	public void testCheckoutOnlyWritesChangedFiles() {
+		String wugFileName = TESTING_DIR + "wug.txt";
+		String notwugFileName = TESTING_DIR + "notwug.txt";
+		createFile(wugFileName, "This is a wug.");
+		gitlet("init");
+		gitlet("add", wugFileName);
+		gitlet("commit", "added wug");
+		long wugModified = new File(wugFileName).lastModified();
+		gitlet("branch", "other");
+		gitlet("checkout", "other");
+		createFile(notwugFileName, "This is not a wug.");
+		gitlet("add", notwugFileName);
+		gitlet("commit", "added notwug");
+		gitlet("checkout", "master");
+		assertTrue(!new File(notwugFileName).exists());
+		assertEquals(wugModified, new File(wugFileName).lastModified());
+		gitlet("checkout", "other");
+		assertEquals("This is not a wug.", getText(notwugFileName));
+	}
+
+	/**
+	 * Tests that a sparse checkout removes files outside its patterns and
+	 * that disabling it brings them back.
+	 */
+	@Test
+	public void testSparseCheckout() {
+		new File(TESTING_DIR + "src").mkdir();
+		String wugFileName = TESTING_DIR + "src/wug.txt";
+		String notwugFileName = TESTING_DIR + "notwug.txt";
+		createFile(wugFileName, "This is a wug.");
+		createFile(notwugFileName, "This is not a wug.");
+		gitlet("init");
+		gitlet("add", wugFileName);
+		gitlet("add", notwugFileName);
+		gitlet("commit", "added wugs");
+		gitlet("sparse-checkout", "set", TESTING_DIR + "src");
+		assertTrue(new File(wugFileName).exists());
+		assertTrue(!new File(notwugFileName).exists());
+		gitlet("sparse-checkout", "disable");
+		assertEquals("This is not a wug.", getText(notwugFileName));
+	}
+
+	/**
+	 * Tests that adding a directory stages every file below it.
+	 */
+	@Test
+	public void testAddDirectory() {
+		new File(TESTING_DIR + "sub").mkdir();
+		String wugFileName = TESTING_DIR + "wug.txt";
+		String notwugFileName = TESTING_DIR + "sub/notwug.txt";
+		createFile(wugFileName, "This is a wug.");
+		createFile(notwugFileName, "This is not a wug.");
+		gitlet("init");
+		gitlet("add", TESTING_DIR);
+		gitlet("commit", "added wugs");
+		writeFile(wugFileName, "This is no longer a wug.");
+		writeFile(notwugFileName, "This is no longer not a wug.");
+		gitlet("checkout", wugFileName);
+		gitlet("checkout", notwugFileName);
+		assertEquals("This is a wug.", getText(wugFileName));
+		assertEquals("This is not a wug.", getText(notwugFileName));
+	}
+
+	/**
+	 * Tests that a glob only adds the files at the depths it names.
+	 */
+	@Test
+	public void testAddGlob() {
+		new File(TESTING_DIR + "sub").mkdir();
+		createFile(TESTING_DIR + "wug.txt", "This is a wug.");
+		createFile(TESTING_DIR + "sub/notwug.txt", "This is not a wug.");
+		gitlet("init");
+		gitlet("add", TESTING_DIR + "*.txt");
+		String status = gitlet("status");
+		assertTrue(status.contains("wug.txt"));
+		assertTrue(!status.contains("notwug.txt"));
+		gitlet("add", TESTING_DIR + "**.txt");
+		assertTrue(gitlet("status").contains("notwug.txt"));
+	}
+
+	/**
+	 * Tests that a batch file runs its commands against one tree, and that
+	 * the tree is saved at the end.
+	 */
+	@Test
+	public void testBatch() {
+		String wugFileName = TESTING_DIR + "wug.txt";
+		String batchFileName = TESTING_DIR + "commands.txt";
+		createFile(wugFileName, "This is a wug.");
+		createFile(batchFileName, "init\nadd " + wugFileName
+				+ "\ncommit \"added wug\"\nbranch other\n");
+		gitlet("batch", batchFileName);
+		assertArrayEquals(new String[] { "added wug", "initial commit" },
+				extractCommitMessages(gitlet("log")));
+		assertTrue(gitlet("status").contains("other"));
+	}
+
+	/**
+	 * Tests that an interactive rebase in a batch read from standard input
+	 * is refused without consuming the commands that follow it.
+	 */
+	@Test
+	public void testBatchRefusesInteractiveRebase() {
+		String wugFileName = TESTING_DIR + "wug.txt";
+		createFile(wugFileName, "This is a wug.");
+		gitlet("init");
+		gitlet("add", wugFileName);
+		gitlet("commit", "added wug");
+		gitlet("branch", "other");
+		String output = gitletWithInput("i-rebase other\nbranch third\n",
+				"batch", "-");
+		assertTrue(output.contains("needs a plan"));
+		assertTrue(gitlet("status").contains("third"));
+	}
+
+	/**
+	 * Tests that old and new commits of a long history resolve to the right
+	 * files, across the commits whose snapshots are stored in full.
+	 */
+	@Test
+	public void testLongHistoryCheckout() {
+		String wugFileName = TESTING_DIR + "wug.txt";
+		String notwugFileName = TESTING_DIR + "notwug.txt";
+		createFile(notwugFileName, "This is not a wug.");
+		gitlet("init");
+		gitlet("add", notwugFileName);
+		for (int i = 1; i <= 40; ++i) {
+			createFile(wugFileName, "Wug " + i);
+			new File(wugFileName).setLastModified(1000000L * i);
+			gitlet("add", wugFileName);
+			if (i == 20) {
+				gitlet("rm", notwugFileName);
+			}
+			gitlet("commit", "wug " + i);
+		}
+		String[] ids = extractCommitIDs(gitlet("log"));
+		for (int i = 40; i >= 1; --i) {
+			gitlet("checkout", ids[40 - i], wugFileName);
+			assertEquals("Wug " + i, getText(wugFileName));
+		}
+		gitlet("reset", ids[40 - 19]);
+		assertEquals("This is not a wug.", getText(notwugFileName));
+		gitlet("reset", ids[0]);
+		assertEquals("Wug 40", getText(wugFileName));
+		assertTrue(!new File(notwugFileName).exists());
+	}
+
+	/**
+	 * Tests that rebase replays the changes of each commit onto the given
+	 * branch, and that a change follows a file the given branch renamed.
+	 */
+	@Test
+	public void testRebaseReplaysChanges() {
+		String wugFileName = TESTING_DIR + "wug.txt";
+		String movedFileName = TESTING_DIR + "moved.txt";
+		String notwugFileName = TESTING_DIR + "notwug.txt";
+		String text = "one\ntwo\nthree\nfour\nfive\nsix\n";
+		createFile(wugFileName, text);
+		gitlet("init");
+		gitlet("add", wugFileName);
+		gitlet("commit", "added wug");
+		gitlet("branch", "other");
+		createFile(movedFileName, text);
+		new File(wugFileName).delete();
+		gitlet("rm", wugFileName);
+		gitlet("add", movedFileName);
+		gitlet("commit", "moved wug");
+		gitlet("checkout", "other");
+		writeFile(wugFileName, "one\ntwo\nthree\nfour\nfive\nSIX\n");
+		gitlet("add", wugFileName);
+		gitlet("commit", "changed wug");
+		createFile(notwugFileName, "This is not a wug.");
+		gitlet("add", notwugFileName);
+		gitlet("commit", "added notwug");
+		gitlet("rebase", "master");
+		assertArrayEquals(new String[] { "added notwug", "changed wug",
+				"moved wug", "added wug", "initial commit" },
+				extractCommitMessages(gitlet("log")));
+		assertEquals("one\ntwo\nthree\nfour\nfive\nSIX\n",
+				getText(movedFileName));
+		assertEquals("This is not a wug.", getText(notwugFileName));
+		assertTrue(!new File(wugFileName).exists());
+	}
+
+	/**
+	 * Tests that an edited rebase plan skips and rewords commits, and that
+	 * the changes of a skipped commit are kept.
+	 */
+	@Test
+	public void testRebasePlan() {
+		String planFileName = TESTING_DIR + "plan.txt";
+		gitlet("init");
+		gitlet("branch", "other");
+		createFile(TESTING_DIR + "m.txt", "m");
+		gitlet("add", TESTING_DIR + "m.txt");
+		gitlet("commit", "added m");
+		gitlet("checkout", "other");
+		for (int i = 1; i <= 3; ++i) {
+			createFile(TESTING_DIR + i + ".txt", "" + i);
+			gitlet("add", TESTING_DIR + i + ".txt");
+			gitlet("commit", "added " + i);
+		}
+		gitlet("rebase-plan", "master", planFileName);
+		String plan = getText(planFileName);
+		assertTrue(plan.contains("pick 3 added 1"));
+		plan = plan.replace("pick 3 added 1", "reword 3 first")
+				.replace("pick 4", "skip 4");
+		writeFile(planFileName, plan);
+		gitlet("i-rebase", "master", "--plan", planFileName);
+		assertArrayEquals(new String[] { "added 3", "first", "added m",
+				"initial commit" }, extractCommitMessages(gitlet("log")));
+		assertEquals("2", getText(TESTING_DIR + "2.txt"));
+	}
+
+	/**
+	 * Tests that cherry-pick merges the changes of one commit into the
+	 * current branch and commits them, leaving other files alone.
+	 */
+	@Test
+	public void testCherryPick() {
+		String wugFileName = TESTING_DIR + "wug.txt";
+		String notwugFileName = TESTING_DIR + "notwug.txt";
+		String laterFileName = TESTING_DIR + "later.txt";
+		createFile(wugFileName, "a\nb\nc\n");
+		gitlet("init");
+		gitlet("add", wugFileName);
+		gitlet("commit", "added wug");
+		gitlet("branch", "other");
+		writeFile(wugFileName, "A\nb\nc\n");
+		gitlet("add", wugFileName);
+		gitlet("commit", "changed first line");
+		gitlet("checkout", "other");
+		writeFile(wugFileName, "a\nb\nC\n");
+		createFile(notwugFileName, "This is not a wug.");
+		gitlet("add", wugFileName);
+		gitlet("add", notwugFileName);
+		gitlet("commit", "changed last line");
+		createFile(laterFileName, "Later.");
+		gitlet("add", laterFileName);
+		gitlet("commit", "added later");
+		gitlet("checkout", "master");
+		gitlet("cherry-pick", "4");
+		assertEquals("A\nb\nC\n", getText(wugFileName));
+		assertEquals("This is not a wug.", getText(notwugFileName));
+		assertTrue(!new File(laterFileName).exists());
+		assertArrayEquals(new String[] { "changed last line",
+				"changed first line", "added wug", "initial commit" },
+				extractCommitMessages(gitlet("log")));
+	}
+
+	/**
+	 * Tests that branches are kept in the ref store: they can be removed and
+	 * packed, and a packed branch can still be checked out.
+	 */
+	@Test
+	public void testBranchRefs() {
+		String wugFileName = TESTING_DIR + "wug.txt";
+		createFile(wugFileName, "This is a wug.");
+		gitlet("init");
+		gitlet("branch", "other");
+		gitlet("branch", "feature/wug");
+		gitlet("add", wugFileName);
+		gitlet("commit", "added wug");
+		gitlet("rm-branch", "other");
+		gitlet("pack-refs");
+		assertTrue(new File(GITLET_DIR + RefStore.PACKED_NAME).exists());
+		assertTrue(gitlet("status").startsWith(
+				"=== Branches ===\nfeature/wug\n*master\n"));
+		gitlet("checkout", "feature/wug");
+		assertTrue(!new File(wugFileName).exists());
+		assertArrayEquals(new String[] { "initial commit" },
+				extractCommitMessages(gitlet("log")));
+	}
+
+	/**
+	 * Tests that add and rm only change the staging index, and that the
+	 * version committed is the one that was added.
+	 */
+	@Test
+	public void testStagingIndex() {
+		String wugFileName = TESTING_DIR + "wug.txt";
+		createFile(wugFileName, "This is a wug.");
+		gitlet("init");
+		String[] generations = new File(GITLET_DIR + TreeStore.TREES_DIR)
+				.list();
+		gitlet("add", wugFileName);
+		assertTrue(gitlet("status").contains(
+				"=== Staged Files ===\n" + wugFileName + "\n"));
+		assertArrayEquals(generations, new File(GITLET_DIR
+				+ TreeStore.TREES_DIR).list());
+		gitlet("rm", wugFileName);
+		assertTrue(gitlet("status").contains("=== Staged Files ===\n\n"));
+		gitlet("add", wugFileName);
+		writeFile(wugFileName, "This is not a wug.");
+		gitlet("commit", "added wug");
+		gitlet("checkout", wugFileName);
+		assertEquals("This is a wug.", getText(wugFileName));
+	}
+
+	/**
+	 * Tests that push sends only the commits the other repository does not
+	 * have, that fetch brings its branch back, and that push is refused when
+	 * the other branch is not in the history of the current one.
+	 */
+	@Test
+	public void testPushFetch() {
+		String wugFileName = TESTING_DIR + "wug.txt";
+		String remoteDir = TESTING_DIR + "remote/";
+		new File(remoteDir).mkdirs();
+		String cwd = System.getProperty("user.dir");
+		System.setProperty("user.dir", new File(remoteDir).getAbsolutePath());
+		gitlet("init");
+		System.setProperty("user.dir", cwd);
+
+		createFile(wugFileName, "This is a wug.");
+		gitlet("init");
+		gitlet("add", wugFileName);
+		gitlet("commit", "added wug");
+		gitlet("add-remote", "origin", remoteDir);
+		gitlet("push", "origin", "other");
+		// The other repository numbers the two commits after its own
+		assertEquals("3", getText(remoteDir + GITLET_DIR + "refs/heads/other")
+				.trim());
+		writeFile(wugFileName, "This is not a wug.");
+		gitlet("add", wugFileName);
+		gitlet("commit", "changed wug");
+		gitlet("push", "origin", "other");
+		assertEquals("4", getText(remoteDir + GITLET_DIR + "refs/heads/other")
+				.trim());
+		assertEquals("3", getText(GITLET_DIR + "refs/remotes/origin/other")
+				.trim());
+		assertEquals("Please pull down remote changes before pushing.",
+				gitlet("push", "origin", "master").trim());
+		gitlet("fetch", "origin", "master");
+		assertEquals("4", getText(GITLET_DIR + "refs/remotes/origin/master")
+				.trim());
+	}
+
+	/**
+	 * Tests that pushing to the branch checked out in the remote repository
+	 * is refused, and leaves that branch where it was.
+	 */
+	@Test
+	public void testPushToCheckedOutBranch() {
+		String wugFileName = TESTING_DIR + "wug.txt";
+		String remoteDir = TESTING_DIR + "remote/";
+		new File(remoteDir).mkdirs();
+		String cwd = System.getProperty("user.dir");
+		System.setProperty("user.dir", new File(remoteDir).getAbsolutePath());
+		gitlet("init");
+		System.setProperty("user.dir", cwd);
+
+		createFile(wugFileName, "This is a wug.");
+		gitlet("init");
+		gitlet("add", wugFileName);
+		gitlet("commit", "added wug");
+		gitlet("add-remote", "origin", remoteDir);
+		gitlet("push", "origin", "other");
+		System.setProperty("user.dir", new File(remoteDir).getAbsolutePath());
+		gitlet("checkout", "other");
+		System.setProperty("user.dir", cwd);
+		writeFile(wugFileName, "This is not a wug.");
+		gitlet("add", wugFileName);
+		gitlet("commit", "changed wug");
+		assertEquals("Cannot push to the branch checked out in the remote"
+				+ " repository.", gitlet("push", "origin", "other").trim());
+		assertEquals("3", getText(remoteDir + GITLET_DIR + "refs/heads/other")
+				.trim());
+	}
+
+	/**
+	 * Tests that a fetched branch cannot be checked out, and that the
+	 * current branch is left as it was.
+	 */
+	@Test
+	public void testCheckoutFetchedBranch() {
+		String wugFileName = TESTING_DIR + "wug.txt";
+		String remoteDir = TESTING_DIR + "remote/";
+		new File(remoteDir).mkdirs();
+		String cwd = System.getProperty("user.dir");
+		System.setProperty("user.dir", new File(remoteDir).getAbsolutePath());
+		gitlet("init");
+		System.setProperty("user.dir", cwd);
+
+		createFile(wugFileName, "This is a wug.");
+		gitlet("init");
+		gitlet("add-remote", "origin", remoteDir);
+		gitlet("fetch", "origin", "master");
+		assertTrue(gitlet("checkout", "origin/master").contains(
+				"Cannot checkout a fetched branch."));
+		assertEquals("ref: refs/heads/master", getText(GITLET_DIR + "HEAD")
+				.trim());
+		gitlet("add", wugFileName);
+		gitlet("commit", "added wug");
+		assertTrue(gitlet("log").contains("added wug"));
+	}
+
+	/**
+	 * Tests that a bundle made since a base commit carries only the newer
+	 * commits, and that another repository can unbundle it only once it has
+	 * the base.
+	 */
+	@Test
+	public void testBundle() {
+		String wugFileName = TESTING_DIR + "wug.txt";
+		String fullBundle = TESTING_DIR + "full.bundle";
+		String newBundle = TESTING_DIR + "new.bundle";
+		String otherDir = TESTING_DIR + "other/";
+		createFile(wugFileName, "This is a wug.");
+		gitlet("init");
+		gitlet("add", wugFileName);
+		gitlet("commit", "added wug");
+		gitlet("bundle", "create", fullBundle, "master");
+		writeFile(wugFileName, "This is not a wug.");
+		gitlet("add", wugFileName);
+		gitlet("commit", "changed wug");
+		gitlet("bundle", "create", newBundle, "master", "2");
+		assertEquals("No commit with that id exists.",
+				gitlet("bundle", "create", newBundle, "master", "4").trim());
+
+		new File(otherDir).mkdirs();
+		String cwd = System.getProperty("user.dir");
+		System.setProperty("user.dir", new File(otherDir).getAbsolutePath());
+		try {
+			gitlet("init");
+			assertTrue(gitlet("bundle", "unbundle", newBundle).startsWith(
+					"The pack is incomplete: missing commit"));
+			gitlet("bundle", "unbundle", fullBundle);
+			// Both commits of master are new here, numbered after init
+			assertEquals("3", getText(otherDir + GITLET_DIR
+					+ "refs/remotes/bundle/master").trim());
+			gitlet("bundle", "unbundle", newBundle);
+			assertEquals("4", getText(otherDir + GITLET_DIR
+					+ "refs/remotes/bundle/master").trim());
+			gitlet("merge", "bundle/master");
+		} finally {
+			System.setProperty("user.dir", cwd);
+		}
+		assertEquals("This is not a wug.", getText(otherDir + wugFileName));
+	}
+
+	/**
+	 * Tests that a shallow clone brings only the last commits, shows where
+	 * its history stops, and refuses to merge a branch that split off before
+	 * that.
+	 */
+	@Test
+	public void testShallowClone() {
+		String sourceDir = TESTING_DIR + "source/";
+		String wugFileName = "wug.txt";
+		new File(sourceDir).mkdirs();
+		String cwd = System.getProperty("user.dir");
+		System.setProperty("user.dir", new File(sourceDir).getAbsolutePath());
+		try {
+			gitlet("init");
+			gitlet("branch", "old");
+			for (int i = 1; i <= 3; ++i) {
+				createFile(sourceDir + wugFileName, "Wug " + i);
+				gitlet("add", sourceDir + wugFileName);
+				gitlet("commit", "wug " + i);
+			}
+		} finally {
+			System.setProperty("user.dir", cwd);
+		}
+
+		gitlet("clone", "--depth", "2", sourceDir);
+		assertEquals("Wug 3", getText(wugFileName));
+		String log = gitlet("log");
+		assertTrue(log.contains("wug 2"));
+		assertTrue(!log.contains("wug 1"));
+		assertTrue(log.contains("(shallow: older commits were not cloned)"));
+		gitlet("fetch", "origin", "old");
+		assertTrue(gitlet("merge", "origin/old").contains(
+				"The split point of the branches is older than the shallow history."));
+		new File(wugFileName).delete();
+	}
+
+	/**
+	 * Tests that a blobless clone only has the blobs of the files checked
+	 * out, and fetches others from the repository it was cloned from when
+	 * they are needed.
+	 */
+	@Test
+	public void testBloblessClone() {
+		String sourceDir = TESTING_DIR + "source/";
+		String wugFileName = "wug.txt";
+		new File(sourceDir).mkdirs();
+		String cwd = System.getProperty("user.dir");
+		System.setProperty("user.dir", new File(sourceDir).getAbsolutePath());
+		try {
+			gitlet("init");
+			for (int i = 1; i <= 3; ++i) {
+				createFile(sourceDir + wugFileName, "Blobless wug " + i);
+				gitlet("add", sourceDir + wugFileName);
+				gitlet("commit", "wug " + i);
+			}
+		} finally {
+			System.setProperty("user.dir", cwd);
+		}
+
+		gitlet("clone", "--blobless", sourceDir);
+		assertEquals("Blobless wug 3", getText(wugFileName));
+		assertEquals(1, countBlobs(GITLET_DIR + "objects"));
+		gitlet("checkout", "2", wugFileName);
+		assertEquals("Blobless wug 1", getText(wugFileName));
+		assertEquals(2, countBlobs(GITLET_DIR + "objects"));
+		new File(wugFileName).delete();
+	}
+
+	/**
+	 * Tests that fsck finds nothing wrong in a new repository, and reports a
+	 * blob whose contents no longer match its hash and the temporary files a
+	 * crash left, which the next commit deletes.
+	 */
+	@Test
+	public void testFsck() {
+		String wugFileName = TESTING_DIR + "wug.txt";
+		createFile(wugFileName, "This is a wug.");
+		gitlet("init");
+		gitlet("add", wugFileName);
+		gitlet("commit", "added wug");
+		assertTrue(gitlet("fsck").endsWith("No problems found.\n"));
+		File blobDir = new File(GITLET_DIR + "objects").listFiles()[0];
+		writeFile(blobDir.listFiles()[0].getPath(), "Not a blob.");
+		String output = gitlet("fsck");
+		assertTrue(output.contains("Corrupt blob: " + blobDir.getName()));
+		assertTrue(output.contains("Commit 2 refers to a missing blob"));
+		assertTrue(output.endsWith("Found 2 problem(s).\n"));
+		File leftover = new File(blobDir, "tmp-1.blob");
+		writeFile(leftover.getPath(), "cut short");
+		leftover.setLastModified(0);
+		assertTrue(gitlet("fsck").contains("Leftover temporary file"));
+		createFile(TESTING_DIR + "other.txt", "This is another wug.");
+		gitlet("add", TESTING_DIR + "other.txt");
+		gitlet("commit", "added other");
+		assertTrue(!leftover.exists());
+	}
+
+	/**
+	 * Tests that a garbage CURRENT falls back to the newest generation, and
+	 * that a truncated generation is recovered from the one before it, with
+	 * the branch reset to a commit that survived.
+	 */
+	@Test
+	public void testTreeStoreRecovery() {
+		String wugFileName = TESTING_DIR + "wug.txt";
+		createFile(wugFileName, "This is a wug.");
+		gitlet("init");
+		gitlet("add", wugFileName);
+		gitlet("commit", "added wug");
+		writeFile(GITLET_DIR + "CURRENT", "garbage");
+		assertTrue(gitlet("log").contains("added wug"));
+		writeFile(GITLET_DIR + "trees/2.ser", "truncated");
+		String output = gitlet("log");
+		assertTrue(output.contains(
+				"Recovered the repository from generation 1."));
+		assertTrue(output.contains("Reset branch master to commit 1."));
+		assertArrayEquals(new String[] { "initial commit" },
+				extractCommitMessages(output));
+		gitlet("add", wugFileName);
+		gitlet("commit", "added wug again");
+		output = gitlet("log");
+		assertTrue(!output.contains("Recovered"));
+		assertArrayEquals(new String[] { "added wug again", "initial commit" },
+				extractCommitMessages(output));
+	}
+
 	/**
 	 * Most of my tests were done via shell script files. I wrote some JUnit
 	 * tests as well but deleted them so that I can pass style check
@@ -167,6 +887,13 @@ public class GitletPublicTest {
 	 * arguments, which are packaged into a String[].
 	 */
 	private static String gitlet(String... args) {
+		return gitletWithInput("yes", args);
+	}
+
+	/**
+	 * Like gitlet, with the given text on System.in instead of "yes"
+	 */
+	private static String gitletWithInput(String input, String... args) {
 		PrintStream originalOut = System.out;
 		InputStream originalIn = System.in;
 		ByteArrayOutputStream printingResults = new ByteArrayOutputStream();
@@ -183,8 +910,7 @@ public class GitletPublicTest {
 			 * will type "yes". You won't be able to take user input during this
 			 * time.
 			 */
-			String answer = "yes";
-			InputStream is = new ByteArrayInputStream(answer.getBytes());
+			InputStream is = new ByteArrayInputStream(input.getBytes());
 			System.setIn(is);
 
 			/* Calls the main method using the input arguments. */
@@ -201,6 +927,21 @@ public class GitletPublicTest {
 		return printingResults.toString();
 	}
 
+	/**
+	 * Returns the number of blobs in an objects directory
+	 */
+	private static int countBlobs(String objectsDir) {
+		int count = 0;
+		File[] dirs = new File(objectsDir).listFiles();
+		if (dirs != null) {
+			for (File dir : dirs) {
+				String[] blobs = dir.list();
+				count += (blobs == null) ? 0 : blobs.length;
+			}
+		}
+		return count;
+	}
+
 	/**
 	 * Returns the text from a standard text file (won't work with special
 	 * characters).
@@ -291,7 +1032,7 @@ public class GitletPublicTest {
 		for (int i = 0; i < numids; i++) {
 			String[] logLines = logChunks[i + 1].split(LINE_SEPARATOR);
 			String idLine = logLines[1];
-			String id = idLine.split(" ")[1];
+			String id = idLine.split(" ")[1].replace(".", "");
 			ids[i] = id;
 		}
 		return ids;
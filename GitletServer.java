@@ -0,0 +1,327 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/**
+ * A resident gitlet process for one repository. It keeps the CommitTree in
+ * memory and runs the commands sent by gitlet clients over the Unix domain
+ * socket .gitlet/daemon.sock, so that a command costs neither a JVM start nor
+ * a read of the saved tree. Commands are run one at a time, and the tree is
+ * saved after every command that changes it. A command that fails is
+ * reported to the client and on the server's standard error, and its
+ * changes to the tree in memory are dropped. The server stops after being
+ * idle.
+ *
+ * A client sends the number of arguments and the arguments. The server
+ * answers with frames: 'O' and bytes to print, 'I' to ask for a line of
+ * input (the client answers with its length and bytes, or -1 at the end of
+ * its input), and 'X' when the command is done.
+ */
+public class GitletServer {
+	// Name of the socket in .gitlet
+	public static final String SOCKET_NAME = "daemon.sock";
+	// Idle time after which the server stops, unless given
+	private static final long DEFAULT_IDLE_SECONDS = 600;
+
+	private final File socketFile;
+	private final long idleMillis;
+	private final GitletHelper helper = new GitletHelper();
+	private boolean stopRequested = false;
+
+	/**
+	 * Construct a server for the repository in the current directory
+	 */
+	public GitletServer(long idleSeconds) {
+		this.socketFile = socketFile();
+		this.idleMillis = 1000 * ((idleSeconds > 0) ? idleSeconds
+				: DEFAULT_IDLE_SECONDS);
+	}
+
+	/**
+	 * Handles "daemon [idleSeconds]" and "daemon stop"
+	 */
+	public static void daemon(String[] args) {
+		if (!new File(System.getProperty("user.dir") + "/.gitlet")
+				.isDirectory()) {
+			System.out
+					.println("Not in an initialized gitlet directory.");
+			return;
+		}
+		if ((args.length >= 2) && args[1].equals("stop")) {
+			System.out.println("No gitlet daemon is running.");
+			return; // A running daemon handles "stop" itself
+		}
+		long idleSeconds = 0;
+		if (args.length >= 2) {
+			try {
+				idleSeconds = Long.parseLong(args[1]);
+			} catch (NumberFormatException e) {
+				System.out.println("Usage: daemon [idleSeconds] | daemon stop");
+				return;
+			}
+		}
+		new GitletServer(idleSeconds).serve();
+	}
+
+	/**
+	 * Accepts and runs commands until idle for too long or stopped
+	 */
+	public void serve() {
+		ServerSocketChannel server = null;
+		Selector selector = null;
+		try {
+			// A socket left by a daemon that died is removed
+			Files.deleteIfExists(socketFile.toPath());
+			server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+			server.bind(UnixDomainSocketAddress.of(socketFile.toPath()));
+			server.configureBlocking(false);
+			selector = Selector.open();
+			server.register(selector, SelectionKey.OP_ACCEPT);
+		} catch (IOException e) {
+			System.out.println("Could not start the gitlet daemon on: "
+					+ socketFile.getPath());
+			return;
+		}
+		Thread cleanup = new Thread() {
+			@Override
+			public void run() {
+				socketFile.delete();
+			}
+		};
+		Runtime.getRuntime().addShutdownHook(cleanup);
+		System.out.println("Gitlet daemon listening on: "
+				+ socketFile.getPath());
+		PrintStream originalOut = System.out;
+		InputStream originalIn = System.in;
+		helper.beginSession();
+		try {
+			while (!stopRequested) {
+				if (selector.select(idleMillis) == 0) {
+					break; // Idle for too long
+				}
+				selector.selectedKeys().clear();
+				SocketChannel client = server.accept();
+				if (client == null)
+					continue;
+				client.configureBlocking(true);
+				try {
+					handle(client);
+				} catch (IOException e) {
+					// The client went away. Keep serving the others.
+				} finally {
+					System.setOut(originalOut);
+					System.setIn(originalIn);
+					client.close();
+				}
+			}
+		} catch (IOException e) {
+			System.out.println("The gitlet daemon stopped: " + e.getMessage());
+		} finally {
+			helper.endSession();
+			try {
+				server.close();
+				selector.close();
+			} catch (IOException e) {
+				// Closing anyway
+			}
+			socketFile.delete();
+			Runtime.getRuntime().removeShutdownHook(cleanup);
+		}
+	}
+
+	/**
+	 * Runs one command of a client, with standard output and input redirected
+	 * to the client
+	 */
+	private void handle(SocketChannel client) throws IOException {
+		final DataInputStream in = new DataInputStream(new BufferedInputStream(
+				Channels.newInputStream(client)));
+		final DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(Channels.newOutputStream(client)));
+		int argc = in.readInt();
+		String[] args = new String[argc];
+		for (int i = 0; i < argc; ++i) {
+			args[i] = in.readUTF();
+		}
+		final PrintStream clientOut = new PrintStream(new BufferedOutputStream(
+				new OutputStream() {
+					@Override
+					public void write(int b) throws IOException {
+						write(new byte[] { (byte) b }, 0, 1);
+					}
+
+					@Override
+					public void write(byte[] b, int off, int len)
+							throws IOException {
+						out.writeByte('O');
+						out.writeInt(len);
+						out.write(b, off, len);
+					}
+
+					@Override
+					public void flush() throws IOException {
+						out.flush();
+					}
+				}), true);
+		System.setOut(clientOut);
+		System.setIn(new InputStream() {
+			private byte[] line = new byte[0];
+			private int pos = 0;
+			private boolean ended = false;
+
+			@Override
+			public int read() throws IOException {
+				byte[] b = new byte[1];
+				return (read(b, 0, 1) == -1) ? -1 : (b[0] & 0xff);
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if ((pos == line.length) && !ended) {
+					// Ask the client for its next line
+					clientOut.flush();
+					out.writeByte('I');
+					out.flush();
+					int n = in.readInt();
+					if (n < 0) {
+						ended = true;
+					} else {
+						line = new byte[n];
+						in.readFully(line);
+						pos = 0;
+					}
+				}
+				if (pos == line.length)
+					return -1;
+				int count = Math.min(len, line.length - pos);
+				System.arraycopy(line, pos, b, off, count);
+				pos += count;
+				return count;
+			}
+		});
+		if ((args.length >= 2) && args[0].equals("daemon")
+				&& args[1].equals("stop")) {
+			System.out.println("Gitlet daemon stopped.");
+			stopRequested = true;
+		} else if ((args.length >= 1) && args[0].equals("daemon")) {
+			System.out.println("A gitlet daemon is already running.");
+		} else {
+			// The tree is saved before another process may take the lock
+			RepoLock lock = RepoLock.acquire(args);
+			if (lock != null) {
+				boolean failed = false;
+				try {
+					Gitlet.run(helper, args);
+				} catch (ArrayIndexOutOfBoundsException e) {
+					System.out.println("Invalid argument(s)"); // Too few
+				} catch (RuntimeException e) {
+					// Nothing the command changed in memory can be trusted
+					failed = true;
+					System.out.println("The command failed: " + e);
+					e.printStackTrace();
+				} finally {
+					if (failed) {
+						helper.discardSession();
+					} else {
+						helper.checkpoint();
+					}
+					lock.release();
+				}
+			}
+		}
+		clientOut.flush();
+		out.writeByte('X');
+		out.flush();
+	}
+
+	/**
+	 * Sends the command to the daemon of the repository in the current
+	 * directory, if one is running, and prints its output. Returns false if
+	 * there is no daemon, so that the command has to be run here.
+	 */
+	public static boolean forward(String[] args) {
+		File socket = socketFile();
+		if (!socket.exists())
+			return false;
+		SocketChannel channel;
+		try {
+			channel = SocketChannel.open(UnixDomainSocketAddress.of(socket
+					.toPath()));
+		} catch (Exception e) {
+			return false; // Left behind by a daemon that died
+		}
+		try {
+			DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(Channels.newOutputStream(channel)));
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					Channels.newInputStream(channel)));
+			out.writeInt(args.length);
+			for (String arg : args) {
+				out.writeUTF(arg);
+			}
+			out.flush();
+			BufferedReader stdin = null;
+			while (true) {
+				byte frame = in.readByte();
+				if (frame == 'O') {
+					byte[] b = new byte[in.readInt()];
+					in.readFully(b);
+					System.out.write(b, 0, b.length);
+				} else if (frame == 'I') {
+					System.out.flush();
+					if (stdin == null) {
+						stdin = new BufferedReader(new InputStreamReader(
+								System.in));
+					}
+					String line = stdin.readLine();
+					if (line == null) {
+						out.writeInt(-1);
+					} else {
+						byte[] b = (line + "\n")
+								.getBytes(StandardCharsets.UTF_8);
+						out.writeInt(b.length);
+						out.write(b);
+					}
+					out.flush();
+				} else {
+					break; // Done
+				}
+			}
+			System.out.flush();
+		} catch (IOException e) {
+			System.out.println("Lost the connection to the gitlet daemon.");
+		} finally {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// Closing anyway
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Location of the socket of the repository in the current directory
+	 */
+	private static File socketFile() {
+		return new File(System.getProperty("user.dir") + "/.gitlet/"
+				+ SOCKET_NAME);
+	}
+}
@@ -0,0 +1,229 @@
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Performs a three-way, line based merge of two versions of a file against
+ * the version in their common ancestor. Edits that do not overlap are
+ * combined; overlapping edits are written out between standard conflict
+ * markers.
+ */
+public class LineMerger {
+	// Bytes are mapped one to one onto chars so that any encoding survives
+	private static final Charset CHARSET = StandardCharsets.ISO_8859_1;
+	// Number of leading bytes inspected when looking for binary content
+	private static final int BINARY_PROBE = 8000;
+
+	private final List<String> base;
+	private final List<String> ours;
+	private final List<String> theirs;
+	private boolean conflicted = false;
+
+	/**
+	 * Construct a merger for the contents of the three versions. A null
+	 * content is treated as an empty file.
+	 */
+	public LineMerger(byte[] baseContents, byte[] ourContents,
+			byte[] theirContents) {
+		this.base = splitLines(baseContents);
+		this.ours = splitLines(ourContents);
+		this.theirs = splitLines(theirContents);
+	}
+
+	/**
+	 * Returns true if any of the contents looks like a binary file. Binary
+	 * files cannot be merged line by line.
+	 */
+	public static boolean isBinary(byte[]... contents) {
+		for (byte[] c : contents) {
+			if (c == null)
+				continue;
+			int len = Math.min(c.length, BINARY_PROBE);
+			for (int i = 0; i < len; ++i) {
+				if (c[i] == 0)
+					return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Access whether the last merge produced conflict markers
+	 */
+	public boolean isConflicted() {
+		return this.conflicted;
+	}
+
+	/**
+	 * Merges the three versions. Stable regions are copied as is, regions
+	 * changed on only one side take that side, and regions changed
+	 * differently on both sides are surrounded by conflict markers labelled
+	 * with ourLabel and theirLabel.
+	 */
+	public byte[] merge(String ourLabel, String theirLabel) {
+		int[] ourMatch = match(base, ours);
+		int[] theirMatch = match(base, theirs);
+		StringBuilder out = new StringBuilder();
+		this.conflicted = false;
+		int i = 0, a = 0, b = 0;
+		while (true) {
+			// Copy lines that are unchanged in both versions
+			while ((i < base.size()) && (ourMatch[i] == a)
+					&& (theirMatch[i] == b)) {
+				out.append(base.get(i));
+				++i;
+				++a;
+				++b;
+			}
+			if ((i == base.size()) && (a == ours.size())
+					&& (b == theirs.size())) {
+				break;
+			}
+			// Find the next base line that survived in both versions
+			int j = i;
+			while ((j < base.size())
+					&& ((ourMatch[j] == -1) || (theirMatch[j] == -1))) {
+				++j;
+			}
+			int aEnd = (j < base.size()) ? ourMatch[j] : ours.size();
+			int bEnd = (j < base.size()) ? theirMatch[j] : theirs.size();
+			List<String> baseChunk = base.subList(i, j);
+			List<String> ourChunk = ours.subList(a, aEnd);
+			List<String> theirChunk = theirs.subList(b, bEnd);
+			if (ourChunk.equals(baseChunk) || ourChunk.equals(theirChunk)) {
+				appendAll(out, theirChunk, false);
+			} else if (theirChunk.equals(baseChunk)) {
+				appendAll(out, ourChunk, false);
+			} else {
+				// Both sides changed the same region differently
+				this.conflicted = true;
+				out.append("<<<<<<< ").append(ourLabel).append('\n');
+				appendAll(out, ourChunk, true);
+				out.append("=======\n");
+				appendAll(out, theirChunk, true);
+				out.append(">>>>>>> ").append(theirLabel).append('\n');
+			}
+			i = j;
+			a = aEnd;
+			b = bEnd;
+		}
+		return out.toString().getBytes(CHARSET);
+	}
+
+	/**
+	 * Appends the lines to out. If terminate is set, a missing line terminator
+	 * on the last line is supplied so that a following marker starts on its
+	 * own line.
+	 */
+	private static void appendAll(StringBuilder out, List<String> lines,
+			boolean terminate) {
+		for (String line : lines) {
+			out.append(line);
+		}
+		int len = out.length();
+		if (terminate && !lines.isEmpty() && (out.charAt(len - 1) != '\n')) {
+			out.append('\n');
+		}
+	}
+
+	/**
+	 * Splits contents into lines, keeping the line terminators so that the
+	 * merged file reproduces the original bytes.
+	 */
+	private static List<String> splitLines(byte[] contents) {
+		List<String> lines = new ArrayList<String>();
+		if (contents == null)
+			return lines;
+		String text = new String(contents, CHARSET);
+		int start = 0;
+		for (int i = 0; i < text.length(); ++i) {
+			if (text.charAt(i) == '\n') {
+				lines.add(text.substring(start, i + 1));
+				start = i + 1;
+			}
+		}
+		if (start < text.length()) {
+			lines.add(text.substring(start));
+		}
+		return lines;
+	}
+
+	/**
+	 * Computes a longest common subsequence of from and to with Myers'
+	 * algorithm. Returns, for each line of from, the index of the matching
+	 * line in to, or -1 if the line was deleted.
+	 */
+	private static int[] match(List<String> from, List<String> to) {
+		int n = from.size(), m = to.size();
+		int[] result = new int[n];
+		Arrays.fill(result, -1);
+		// Common prefix and suffix need no search
+		int pre = 0;
+		while ((pre < n) && (pre < m) && from.get(pre).equals(to.get(pre))) {
+			result[pre] = pre;
+			++pre;
+		}
+		int suf = 0;
+		while ((suf < n - pre) && (suf < m - pre)
+				&& from.get(n - 1 - suf).equals(to.get(m - 1 - suf))) {
+			result[n - 1 - suf] = m - 1 - suf;
+			++suf;
+		}
+		int rows = n - pre - suf, cols = m - pre - suf;
+		if ((rows == 0) || (cols == 0))
+			return result;
+
+		int max = rows + cols;
+		int offset = max + 1;
+		int[] v = new int[2 * max + 3];
+		List<int[]> trace = new ArrayList<int[]>();
+		int x = 0, y = 0;
+		search: for (int d = 0; d <= max; ++d) {
+			trace.add(v.clone());
+			for (int k = -d; k <= d; k += 2) {
+				if ((k == -d)
+						|| ((k != d) && (v[offset + k - 1] < v[offset + k + 1]))) {
+					x = v[offset + k + 1];
+				} else {
+					x = v[offset + k - 1] + 1;
+				}
+				y = x - k;
+				while ((x < rows) && (y < cols)
+						&& from.get(pre + x).equals(to.get(pre + y))) {
+					++x;
+					++y;
+				}
+				v[offset + k] = x;
+				if ((x >= rows) && (y >= cols)) {
+					break search;
+				}
+			}
+		}
+		// Walk the recorded frontiers backwards to recover the matches
+		x = rows;
+		y = cols;
+		for (int d = trace.size() - 1; d >= 0; --d) {
+			int[] prev = trace.get(d);
+			int k = x - y;
+			int prevK;
+			if ((k == -d)
+					|| ((k != d) && (prev[offset + k - 1] < prev[offset + k + 1]))) {
+				prevK = k + 1;
+			} else {
+				prevK = k - 1;
+			}
+			int prevX = prev[offset + prevK];
+			int prevY = prevX - prevK;
+			while ((x > prevX) && (y > prevY)) {
+				--x;
+				--y;
+				result[pre + x] = pre + y;
+			}
+			x = prevX;
+			y = prevY;
+		}
+		return result;
+	}
+}
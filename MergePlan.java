@@ -0,0 +1,265 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+/**
+ * Plans a merge once as a list of per-file actions, computed from the
+ * snapshots of the common ancestor, the current branch ("ours") and the given
+ * branch ("theirs"). The actions are then executed independently on a
+ * WorkerPool. Steps are kept sorted by file name so the outcome and the
+ * messages printed for it do not depend on thread scheduling.
+ */
+public class MergePlan {
+
+	/**
+	 * What has to happen to a single file
+	 */
+	public enum Action {
+		TAKE_OURS, // Only changed in the current branch. Nothing to do.
+		TAKE_THEIRS, // Only changed (or deleted) in the given branch
+		THREE_WAY, // Changed in both branches. Merge the lines.
+		CONFLICT // Changed in one branch, deleted in the other
+	}
+
+	/**
+	 * One planned step of the merge and, after execution, its outcome
+	 */
+	public static class Step {
+		private final String fileName;
+		private final Action action;
+		private final StoredFile base;
+		private final StoredFile ours;
+		private final StoredFile theirs;
+		private boolean conflicted = false;
+		private boolean failed = false;
+
+		private Step(String fileName, Action action, StoredFile base,
+				StoredFile ours, StoredFile theirs) {
+			this.fileName = fileName;
+			this.action = action;
+			this.base = base;
+			this.ours = ours;
+			this.theirs = theirs;
+		}
+
+		/**
+		 * Access absolute file name
+		 */
+		public String getFileName() {
+			return this.fileName;
+		}
+
+		/**
+		 * Access planned action
+		 */
+		public Action getAction() {
+			return this.action;
+		}
+
+		/**
+		 * Access the given branch's version. Null if it was deleted there.
+		 */
+		public StoredFile getTheirs() {
+			return this.theirs;
+		}
+
+		/**
+		 * True if the file was left with conflict markers or a .conflicted
+		 * copy
+		 */
+		public boolean isConflicted() {
+			return this.conflicted;
+		}
+
+		/**
+		 * True if the working file could not be read or written
+		 */
+		public boolean hasFailed() {
+			return this.failed;
+		}
+	}
+
+	private final ArrayList<Step> steps = new ArrayList<Step>();
+
+	/**
+	 * Plans the merge. Each map is a snapshot of <absolute file name,
+	 * StoredFile>; base may be empty if the branches share no history. Files
+	 * renamed in one branch are lined up with the same file in the other
+	 * branch first, so that edits follow the rename. The pool is used to
+	 * compute content signatures.
+	 */
+	public MergePlan(Map<String, StoredFile> base,
+			Map<String, StoredFile> ours, Map<String, StoredFile> theirs,
+			WorkerPool pool) {
+		TreeMap<String, StoredFile> b = new TreeMap<String, StoredFile>(base);
+		TreeMap<String, StoredFile> o = new TreeMap<String, StoredFile>(ours);
+		TreeMap<String, StoredFile> t = new TreeMap<String, StoredFile>(theirs);
+		TreeMap<String, String> ourRenames = RenameDetector.detect(base, ours,
+				pool);
+		TreeMap<String, String> theirRenames = RenameDetector.detect(base,
+				theirs, pool);
+		for (String from : ourRenames.keySet()) {
+			String to = ourRenames.get(from);
+			if (!theirRenames.containsKey(from) && t.containsKey(from)
+					&& !t.containsKey(to)) {
+				// Move their version to our new name
+				t.put(to, t.remove(from).renamedTo(to));
+				b.put(to, base.get(from).renamedTo(to));
+			}
+		}
+		// <their new name, our version under that name>
+		TreeMap<String, StoredFile> moved = new TreeMap<String, StoredFile>();
+		for (String from : theirRenames.keySet()) {
+			String to = theirRenames.get(from);
+			if (!ourRenames.containsKey(from) && o.containsKey(from)
+					&& !o.containsKey(to)) {
+				// Merge our version under their new name. The old name is
+				// then simply deleted, as if we had not changed it.
+				moved.put(to, o.get(from).renamedTo(to));
+				b.put(to, base.get(from).renamedTo(to));
+				b.put(from, o.get(from));
+			}
+		}
+		plan(b, o, t, moved);
+	}
+
+	/**
+	 * Adds a step for every file on which the branches disagree. Our
+	 * versions of files the given branch renamed are in moved, under the new
+	 * names; the working directory does not have them there yet, so their
+	 * steps always write the file.
+	 */
+	private void plan(Map<String, StoredFile> base,
+			Map<String, StoredFile> ours, Map<String, StoredFile> theirs,
+			Map<String, StoredFile> moved) {
+		TreeSet<String> fileNames = new TreeSet<String>();
+		fileNames.addAll(ours.keySet());
+		fileNames.addAll(theirs.keySet());
+		for (String fn : fileNames) {
+			StoredFile b = base.get(fn);
+			StoredFile o = ours.get(fn);
+			StoredFile t = theirs.get(fn);
+			if (moved.containsKey(fn)) {
+				o = moved.get(fn);
+				if (StoredFile.sameContents(b, o)
+						|| StoredFile.sameContents(o, t)) {
+					steps.add(new Step(fn, Action.TAKE_THEIRS, b, o, t));
+				} else {
+					steps.add(new Step(fn, Action.THREE_WAY, b, o, t));
+				}
+				continue;
+			}
+			if (StoredFile.sameContents(o, t)) {
+				continue; // Both branches agree
+			}
+			if (StoredFile.sameContents(b, t)) {
+				steps.add(new Step(fn, Action.TAKE_OURS, b, o, t));
+			} else if (StoredFile.sameContents(b, o)) {
+				steps.add(new Step(fn, Action.TAKE_THEIRS, b, o, t));
+			} else if ((o == null) || (t == null)) {
+				steps.add(new Step(fn, Action.CONFLICT, b, o, t));
+			} else {
+				steps.add(new Step(fn, Action.THREE_WAY, b, o, t));
+			}
+		}
+	}
+
+	/**
+	 * Access planned steps, sorted by file name
+	 */
+	public List<Step> getSteps() {
+		return this.steps;
+	}
+
+	/**
+	 * Applies every step to the working directory using the workers of the
+	 * pool, and waits until all of them are done. theirLabel names the given
+	 * branch in conflict markers. Files outside the sparse checkout are only
+	 * written if they have to be merged.
+	 */
+	public void execute(WorkerPool pool, final String theirLabel,
+			SparseCheckout sparse) {
+		ArrayList<Future<Boolean>> pending = new ArrayList<Future<Boolean>>();
+		for (final Step step : steps) {
+			if (step.action == Action.TAKE_OURS) {
+				continue; // The working file already has our version
+			}
+			if ((step.action == Action.TAKE_THEIRS)
+					&& !sparse.includes(step.fileName)) {
+				continue; // Only staged. Outside the sparse checkout.
+			}
+			pending.add(pool.submit(new Callable<Boolean>() {
+				@Override
+				public Boolean call() {
+					return apply(step, theirLabel);
+				}
+			}));
+		}
+		for (int i = 0; i < pending.size(); ++i) {
+			try {
+				pending.get(i).get();
+			} catch (Exception e) {
+				// The step records its own failure
+			}
+		}
+	}
+
+	/**
+	 * Applies a single step to the working directory
+	 */
+	private static boolean apply(Step step, String theirLabel) {
+		switch (step.action) {
+		case TAKE_THEIRS:
+			if (step.theirs == null) {
+				new File(step.fileName).delete();
+			} else {
+				// Theirs may be in a directory we do not have
+				File dir = new File(step.fileName).getParentFile();
+				if (dir != null)
+					dir.mkdirs();
+				if (!step.theirs.restoreFile())
+					step.failed = true;
+			}
+			break;
+
+		case CONFLICT:
+			// Keep our version, and leave theirs (if any) next to it
+			if (step.theirs != null) {
+				step.theirs.restoreConflictedFile();
+			}
+			step.conflicted = true;
+			break;
+
+		case THREE_WAY:
+			byte[] baseContents = (step.base == null) ? new byte[0]
+					: step.base.readContents();
+			byte[] ourContents = step.ours.readContents();
+			byte[] theirContents = step.theirs.readContents();
+			if ((baseContents == null) || (ourContents == null)
+					|| (theirContents == null)) {
+				step.failed = true;
+			} else if (LineMerger.isBinary(baseContents, ourContents,
+					theirContents)) {
+				// Cannot merge the lines. Copy theirs with .conflicted
+				step.theirs.restoreConflictedFile();
+				step.conflicted = true;
+			} else {
+				LineMerger merger = new LineMerger(baseContents, ourContents,
+						theirContents);
+				byte[] merged = merger.merge("HEAD", theirLabel);
+				step.conflicted = merger.isConflicted();
+				if (!step.ours.restoreContents(merged)) {
+					step.failed = true;
+				}
+			}
+			break;
+		default:
+		}
+		return !step.failed;
+	}
+}
@@ -0,0 +1,484 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The content addressed store of file contents (blobs) in a .gitlet
+ * directory. A blob is named after the SHA-1 hash of its contents and kept
+ * compressed under .gitlet/objects, so identical contents are stored once.
+ * Blobs written before the store existed are plain copies named FILE*, and
+ * can still be read.
+ *
+ * New blobs are written without forcing them to disk, and kept under a
+ * temporary name. Before anything that refers to them is published,
+ * syncPending forces all of them together and only then renames them into
+ * place, so a command costs one batch of syncs however many files it stores,
+ * and a blob that exists under its name is always complete.
+ *
+ * The store of a blobless clone has a promisor, the store of the repository
+ * it was cloned from, named in .gitlet/promisor. Blobs it does not have are
+ * fetched from there when they are first opened, and kept.
+ */
+public class ObjectStore {
+	// Directory under .gitlet that holds the blobs
+	public static final String OBJECTS_DIR = "objects";
+	// File under .gitlet that names the promisor's .gitlet directory
+	public static final String PROMISOR_NAME = "promisor";
+	// Files up to this size are hashed and compressed in memory
+	private static final long IN_MEMORY_LIMIT = 8L * 1024 * 1024;
+	private static final int BUFFER_SIZE = 64 * 1024;
+	// Younger temporary files may still be written by a command that holds
+	// no lock, a read-only one fetching from the promisor
+	private static final long LEFTOVER_AGE_MILLIS = 60 * 1000;
+
+	private final String gitletDir;
+	// Blobs written but not yet synced, <final file, temporary file>
+	private static final HashMap<File, File> unsynced = new HashMap<File, File>();
+
+	/**
+	 * Construct the store of the given .gitlet directory
+	 */
+	public ObjectStore(String gitletDir) {
+		this.gitletDir = gitletDir;
+	}
+
+	/**
+	 * The store of the repository in the current directory
+	 */
+	public static ObjectStore current() {
+		return new ObjectStore(System.getProperty("user.dir") + "/.gitlet");
+	}
+
+	/**
+	 * Name, relative to .gitlet, of the blob with the given hash
+	 */
+	public static String storedFileName(String hash) {
+		return OBJECTS_DIR + "/" + hash.substring(0, 2) + "/"
+				+ hash.substring(2);
+	}
+
+	/**
+	 * Stores the contents of the file and returns their hash. The file is
+	 * read, hashed, checked against the blobs already stored, and only
+	 * compressed and written if it is new. The blob is written under a
+	 * temporary name, and only synced and moved into place by syncPending.
+	 */
+	public String store(File src) throws IOException {
+		if (src.length() <= IN_MEMORY_LIMIT) {
+			byte[] contents = Files.readAllBytes(src.toPath());
+			String hash = hash(contents);
+			if (!contains(hash)) {
+				ByteArrayOutputStream compressed = new ByteArrayOutputStream(
+						contents.length / 2 + 64);
+				DeflaterOutputStream out = new DeflaterOutputStream(
+						compressed, new Deflater(Deflater.BEST_SPEED));
+				out.write(contents);
+				out.close();
+				writeBlob(hash, compressed.toByteArray(), null, null);
+			}
+			return hash;
+		}
+		// Large files are streamed twice instead of being held in memory
+		String hash;
+		InputStream in = new FileInputStream(src);
+		try {
+			hash = hash(in);
+		} finally {
+			in.close();
+		}
+		if (!contains(hash)) {
+			in = new FileInputStream(src);
+			try {
+				writeBlob(hash, null, in, null);
+			} finally {
+				in.close();
+			}
+		}
+		return hash;
+	}
+
+	/**
+	 * Stores the contents read from in, as received from another repository,
+	 * under the hash they were sent with. Returns false, and stores nothing,
+	 * if the contents do not have that hash.
+	 */
+	public boolean store(InputStream in, String hash) throws IOException {
+		try {
+			writeBlob(hash, null, in, newDigest());
+		} catch (CorruptBlobException e) {
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Full path of a stored file, given its name relative to .gitlet
+	 */
+	public String getLocation(String storedFileName) {
+		return gitletDir + "/" + storedFileName;
+	}
+
+	/**
+	 * Returns true if a blob with the given hash is stored, synced or not
+	 */
+	public boolean contains(String hash) {
+		return locate(storedFileName(hash)).isFile();
+	}
+
+	/**
+	 * Forces every blob written since the last call to disk, on a pool of
+	 * workers so that the syncs are issued as one batch, then renames them
+	 * into place and syncs their directories. Must be called before a tree
+	 * or index that refers to them is written.
+	 */
+	public static void syncPending() throws IOException {
+		HashMap<File, File> batch = new HashMap<File, File>();
+		synchronized (unsynced) {
+			Iterator<File> it = unsynced.keySet().iterator();
+			while (it.hasNext()) {
+				File dest = it.next();
+				if (unsynced.get(dest).isFile()) {
+					batch.put(dest, unsynced.get(dest));
+				} else {
+					it.remove(); // Its repository was deleted since
+				}
+			}
+		}
+		if (batch.isEmpty())
+			return;
+		WorkerPool pool = new WorkerPool();
+		ArrayList<Future<Void>> pending = new ArrayList<Future<Void>>();
+		for (final File tmp : batch.values()) {
+			pending.add(pool.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws IOException {
+					FileChannel ch = FileChannel.open(tmp.toPath(),
+							StandardOpenOption.WRITE);
+					try {
+						ch.force(true);
+					} finally {
+						ch.close();
+					}
+					return null;
+				}
+			}));
+		}
+		IOException failure = null;
+		for (Future<Void> result : pending) {
+			try {
+				result.get();
+			} catch (Exception e) {
+				failure = new IOException("Could not sync blob", e);
+			}
+		}
+		pool.shutdown();
+		if (failure != null)
+			throw failure; // The blobs stay pending
+		HashSet<File> dirs = new HashSet<File>();
+		for (File dest : batch.keySet()) {
+			Files.move(batch.get(dest).toPath(), dest.toPath(),
+					StandardCopyOption.ATOMIC_MOVE);
+			dirs.add(dest.getParentFile());
+		}
+		for (File dir : dirs) {
+			AtomicFile.syncDirectory(dir);
+		}
+		synchronized (unsynced) {
+			unsynced.keySet().removeAll(batch.keySet());
+		}
+	}
+
+	/**
+	 * Returns the temporary files a crash left in the object directories.
+	 * The blobs this process has not synced yet are not leftovers.
+	 */
+	public ArrayList<File> findLeftovers() {
+		ArrayList<File> leftovers = new ArrayList<File>();
+		File[] dirs = new File(getLocation(OBJECTS_DIR)).listFiles();
+		if (dirs == null)
+			return leftovers;
+		long before = System.currentTimeMillis() - LEFTOVER_AGE_MILLIS;
+		for (File dir : dirs) {
+			File[] entries = dir.listFiles();
+			if (entries == null)
+				continue;
+			for (File f : entries) {
+				if (f.isFile() && f.getName().startsWith(AtomicFile.TEMP_PREFIX)
+						&& (f.lastModified() < before) && !isUnsynced(f)) {
+					leftovers.add(f);
+				}
+			}
+		}
+		return leftovers;
+	}
+
+	/**
+	 * Deletes the temporary files a crash left in the object directories.
+	 * Must be called holding the repository lock.
+	 */
+	public void deleteLeftovers() {
+		for (File f : findLeftovers()) {
+			f.delete();
+		}
+	}
+
+	private static boolean isUnsynced(File tmp) {
+		synchronized (unsynced) {
+			return unsynced.containsValue(tmp);
+		}
+	}
+
+	/**
+	 * The file that holds a stored file now: its temporary file if it is a
+	 * blob that has not been synced yet
+	 */
+	private File locate(String storedFileName) {
+		File f = new File(getLocation(storedFileName));
+		if (!f.isFile()) {
+			synchronized (unsynced) {
+				File tmp = unsynced.get(f);
+				if (tmp != null)
+					return tmp;
+			}
+		}
+		return f;
+	}
+
+	/**
+	 * Returns the store blobs are fetched from, or null if this store has
+	 * every blob
+	 */
+	public ObjectStore getPromisor() {
+		File f = new File(gitletDir, PROMISOR_NAME);
+		if (!f.isFile())
+			return null;
+		try {
+			return new ObjectStore(new String(Files.readAllBytes(f.toPath()),
+					StandardCharsets.UTF_8).trim());
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Makes the store of the given .gitlet directory the promisor of this one
+	 */
+	public void setPromisor(String promisorDir) throws IOException {
+		AtomicFile.write(new File(gitletDir, PROMISOR_NAME),
+				(promisorDir + "\n").getBytes(StandardCharsets.UTF_8), true);
+	}
+
+	/**
+	 * Fetches the blobs with the given hashes that are not stored here from
+	 * the promisor, on a pool of workers. Returns false, after printing how
+	 * many, if any of them could not be fetched.
+	 */
+	public boolean fetchMissing(Collection<String> hashes) {
+		final ObjectStore promisor = getPromisor();
+		if (promisor == null)
+			return true;
+		TreeSet<String> missing = new TreeSet<String>();
+		for (String hash : hashes) {
+			if (!contains(hash))
+				missing.add(hash);
+		}
+		if (missing.isEmpty())
+			return true;
+		WorkerPool pool = new WorkerPool();
+		ArrayList<Future<Boolean>> pending = new ArrayList<Future<Boolean>>();
+		for (final String hash : missing) {
+			pending.add(pool.submit(new Callable<Boolean>() {
+				@Override
+				public Boolean call() {
+					return fetch(promisor, hash);
+				}
+			}));
+		}
+		int failed = 0;
+		for (Future<Boolean> result : pending) {
+			try {
+				if (!result.get())
+					++failed;
+			} catch (Exception e) {
+				++failed;
+			}
+		}
+		pool.shutdown();
+		try {
+			syncPending(); // Keep what was fetched
+		} catch (IOException e) {
+			// Fetched again next time
+		}
+		if (failed > 0) {
+			System.out.println("Could not fetch " + failed + " blob(s) from: "
+					+ promisor.gitletDir);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Copies a blob from the promisor, checking its hash. Returns false if
+	 * the promisor does not have it or it is corrupt there.
+	 */
+	private boolean fetch(ObjectStore promisor, String hash) {
+		if (!promisor.contains(hash))
+			return false;
+		try {
+			InputStream in = promisor.open(storedFileName(hash), true);
+			try {
+				return store(in, hash);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Opens a stored file, given its name relative to .gitlet. Compressed
+	 * blobs are decompressed while reading. A blob that is not stored here is
+	 * fetched from the promisor first, if there is one.
+	 */
+	public InputStream open(String storedFileName, boolean compressed)
+			throws IOException {
+		String blobPrefix = OBJECTS_DIR + "/";
+		File f = locate(storedFileName);
+		if (!f.isFile() && storedFileName.startsWith(blobPrefix)) {
+			ObjectStore promisor = getPromisor();
+			if ((promisor != null)
+					&& fetch(promisor, storedFileName.substring(
+							blobPrefix.length()).replace("/", ""))) {
+				syncPending(); // Keep it
+				f = locate(storedFileName);
+			}
+		}
+		InputStream in;
+		try {
+			in = new FileInputStream(f);
+		} catch (IOException e) {
+			// Renamed into place meanwhile
+			in = new FileInputStream(getLocation(storedFileName));
+		}
+		if (compressed) {
+			return new InflaterInputStream(in);
+		}
+		return in;
+	}
+
+	/**
+	 * Returns the SHA-1 hash of the contents as a hex string
+	 */
+	public static String hash(byte[] contents) {
+		MessageDigest md = newDigest();
+		md.update(contents);
+		return toHex(md.digest());
+	}
+
+	/**
+	 * Returns the SHA-1 hash of everything read from in as a hex string
+	 */
+	public static String hash(InputStream in) throws IOException {
+		MessageDigest md = newDigest();
+		byte[] buf = new byte[BUFFER_SIZE];
+		int n;
+		while ((n = in.read(buf)) > 0) {
+			md.update(buf, 0, n);
+		}
+		return toHex(md.digest());
+	}
+
+	/**
+	 * Writes a blob to a temporary file, to be synced and moved to its final
+	 * name by syncPending. Either the compressed bytes are given, or a stream
+	 * to compress. If check is given the stream is hashed with it, and the
+	 * blob is only kept if the hash matches.
+	 */
+	private void writeBlob(String hash, byte[] compressed, InputStream raw,
+			MessageDigest check) throws IOException {
+		File dest = new File(getLocation(storedFileName(hash)));
+		File dir = dest.getParentFile();
+		dir.mkdirs();
+		File tmp = File.createTempFile("tmp-", ".blob", dir);
+		boolean kept = false;
+		try {
+			FileChannel ch = FileChannel.open(tmp.toPath(),
+					StandardOpenOption.WRITE);
+			try {
+				OutputStream out = Channels.newOutputStream(ch);
+				if (compressed != null) {
+					out.write(compressed);
+				} else {
+					DeflaterOutputStream dout = new DeflaterOutputStream(out,
+							new Deflater(Deflater.BEST_SPEED), BUFFER_SIZE);
+					byte[] buf = new byte[BUFFER_SIZE];
+					int n;
+					while ((n = raw.read(buf)) > 0) {
+						dout.write(buf, 0, n);
+						if (check != null)
+							check.update(buf, 0, n);
+					}
+					dout.finish();
+					if ((check != null) && !toHex(check.digest()).equals(hash))
+						throw new CorruptBlobException();
+				}
+			} finally {
+				ch.close();
+			}
+			synchronized (unsynced) {
+				if (!dest.isFile() && !unsynced.containsKey(dest)) {
+					unsynced.put(dest, tmp);
+					kept = true;
+				}
+			}
+		} finally {
+			if (!kept)
+				tmp.delete(); // Failed, or another thread stored it first
+		}
+	}
+
+	/**
+	 * Thrown when received contents do not have the hash they were sent with
+	 */
+	private static class CorruptBlobException extends IOException {
+		private static final long serialVersionUID = 1L;
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (Exception e) {
+			throw new IllegalStateException("SHA-1 is not available", e);
+		}
+	}
+
+	private static String toHex(byte[] digest) {
+		StringBuilder sb = new StringBuilder();
+		for (byte b : digest) {
+			sb.append(String.format("%02x", b));
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,468 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Moves commits, and the blobs they add, from one repository to another as
+ * a single stream. The stream starts with the refs it carries, each a name
+ * and the uid of the commit it points to. The commits go next, oldest
+ * first, each with its uid, its parent's uid, time, message and changes,
+ * with file names relative to the repository. Then come the blobs the
+ * receiver does not have, each hashed again when it is stored, and last the
+ * SHA-1 checksum of the whole stream. The commits are only added to the
+ * receiving tree once the checksum has been verified.
+ *
+ * A commit whose parent is not sent can be sent with the files it inherits
+ * from that parent. A receiver that does not have the parent then keeps it
+ * as a shallow boundary, the oldest commit of a shallow clone. A pack for a
+ * blobless clone has no blobs but those that cannot be fetched by hash
+ * later, as the receiver's promisor has them.
+ */
+public class Pack {
+	private static final String MAGIC = "GITLET-PACK";
+	private static final int VERSION = 2; // 1 had no inherited files
+	private static final int CHUNK_SIZE = 64 * 1024;
+
+	// Send the first commit with the files it inherits
+	public static final int SHALLOW = 1;
+	// Send no blob the receiver can fetch from its promisor
+	public static final int NO_BLOBS = 2;
+
+	/**
+	 * Returns the commits from head back that the receiving tree does not
+	 * have, oldest first
+	 */
+	public static List<CommitNode> missingCommits(CommitTree from,
+			CommitNode head, CommitTree to) {
+		ArrayList<CommitNode> missing = new ArrayList<CommitNode>();
+		CommitNode cnode = head;
+		while ((cnode != null)
+				&& (to.getCommitByUid(from.getUid(cnode)) == null)) {
+			missing.add(cnode);
+			cnode = cnode.getParent();
+		}
+		Collections.reverse(missing);
+		return missing;
+	}
+
+	/**
+	 * Returns the commits from head back to base, not included, oldest
+	 * first. All of head's history if base is null. Returns null if base is
+	 * not in head's history.
+	 */
+	public static List<CommitNode> commitsSince(CommitNode head,
+			CommitNode base) {
+		ArrayList<CommitNode> commits = new ArrayList<CommitNode>();
+		CommitNode cnode = head;
+		while (cnode != base) {
+			if (cnode == null)
+				return null;
+			commits.add(cnode);
+			cnode = cnode.getParent();
+		}
+		Collections.reverse(commits);
+		return commits;
+	}
+
+	/**
+	 * Sends the commits from one tree to the other, through a pipe, and
+	 * returns them as received. The options are SHALLOW and NO_BLOBS, or 0.
+	 * Returns null, after printing why, if they could not be received; the
+	 * receiving tree is then unchanged.
+	 */
+	public static List<CommitNode> transfer(final CommitTree from,
+			final List<CommitNode> commits, CommitTree to, final int options) {
+		final PipedOutputStream out = new PipedOutputStream();
+		final ObjectStore have = new ObjectStore(to.getLocation());
+		PipedInputStream in;
+		try {
+			in = new PipedInputStream(out, CHUNK_SIZE);
+		} catch (IOException e) {
+			System.out.println("Could not transfer commits.");
+			return null;
+		}
+		Thread sender = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					write(out, from, commits, have, null, options);
+				} catch (IOException e) {
+					// The receiver reports the broken pack
+				} finally {
+					try {
+						out.close();
+					} catch (IOException e) {
+						// Already closed by the receiver
+					}
+				}
+			}
+		});
+		sender.start();
+		try {
+			return read(in, to, null);
+		} finally {
+			try {
+				in.close(); // Stops the sender if the receiver gave up
+				sender.join();
+			} catch (Exception e) {
+				// Done with the transfer anyway
+			}
+		}
+	}
+
+	/**
+	 * Writes the refs, by name, the commits, and the blobs they add that are
+	 * not in have. Every blob they add is written if have is null. The refs
+	 * can be null. With SHALLOW, the first commit is written with the files
+	 * it inherits, and their blobs; so is any shallow boundary of from. With
+	 * NO_BLOBS, only blobs that have no hash yet are written.
+	 */
+	public static void write(OutputStream out, CommitTree from,
+			List<CommitNode> commits, ObjectStore have,
+			Map<String, String> refs, int options) throws IOException {
+		MessageDigest md = newDigest();
+		OutputStream buffered = new BufferedOutputStream(out, CHUNK_SIZE);
+		DataOutputStream data = new DataOutputStream(new DigestOutputStream(
+				buffered, md));
+		ObjectStore store = new ObjectStore(from.getLocation());
+		// Blobs to send, by hash
+		HashMap<String, StoredFile> blobs = new HashMap<String, StoredFile>();
+		ArrayList<String> blobOrder = new ArrayList<String>();
+
+		data.writeUTF(MAGIC);
+		data.writeInt(VERSION);
+		data.writeInt((refs == null) ? 0 : refs.size());
+		if (refs != null) {
+			for (String name : refs.keySet()) {
+				data.writeUTF(name);
+				data.writeUTF(refs.get(name));
+			}
+		}
+		data.writeInt(commits.size());
+		for (int i = 0; i < commits.size(); ++i) {
+			CommitNode cnode = commits.get(i);
+			data.writeUTF(from.getUid(cnode));
+			if (cnode.getParent() != null) {
+				data.writeUTF(from.getUid(cnode.getParent()));
+			} else {
+				data.writeUTF(cnode.isShallow() ? cnode.getShallowParentUid() : "");
+			}
+			data.writeLong(cnode.getCommitTime().getTime());
+			data.writeUTF(cnode.getCommitMessage());
+			writeFiles(data, from, cnode.getAddedFiles(), store, have, options,
+					blobs, blobOrder);
+			data.writeInt(cnode.getDeletedFiles().size());
+			for (String fn : cnode.getDeletedFiles()) {
+				data.writeUTF(from.relativeName(fn));
+			}
+			if ((((options & SHALLOW) != 0) && (i == 0)) || cnode.isShallow()) {
+				// Only those the commit does not replace or delete
+				TreeMap<String, StoredFile> kept = new TreeMap<String, StoredFile>();
+				for (StoredFile fInfo : cnode.getInheritedFiles()) {
+					kept.put(fInfo.getOriginalFileName(), fInfo);
+				}
+				for (StoredFile fInfo : cnode.getAddedFiles()) {
+					kept.remove(fInfo.getOriginalFileName());
+				}
+				kept.keySet().removeAll(cnode.getDeletedFiles());
+				data.writeBoolean(true);
+				writeFiles(data, from, kept.values(), store, have, options,
+						blobs, blobOrder);
+			} else {
+				data.writeBoolean(false);
+			}
+		}
+		byte[] buf = new byte[CHUNK_SIZE];
+		for (String hash : blobOrder) {
+			StoredFile fInfo = blobs.get(hash);
+			data.writeBoolean(true);
+			data.writeUTF(hash);
+			InputStream in = store.open(fInfo.getStoredFileName(),
+					fInfo.isCompressed());
+			try {
+				int n;
+				while ((n = in.read(buf)) > 0) {
+					data.writeInt(n);
+					data.write(buf, 0, n);
+				}
+			} finally {
+				in.close();
+			}
+			data.writeInt(0);
+		}
+		data.writeBoolean(false);
+		data.flush();
+		buffered.write(md.digest());
+		buffered.flush();
+	}
+
+	/**
+	 * Writes the files, and keeps those whose blobs are to be sent
+	 */
+	private static void writeFiles(DataOutputStream data, CommitTree from,
+			Collection<StoredFile> files, ObjectStore store, ObjectStore have,
+			int options, HashMap<String, StoredFile> blobs,
+			ArrayList<String> blobOrder) throws IOException {
+		data.writeInt(files.size());
+		for (StoredFile fInfo : files) {
+			String hash = hashOf(fInfo, store);
+			data.writeUTF(from.relativeName(fInfo.getOriginalFileName()));
+			data.writeUTF(hash);
+			data.writeLong(fInfo.getSize());
+			data.writeLong(fInfo.getLastModified());
+			// Files stored before blobs were hashed cannot be fetched by hash
+			boolean promised = ((options & NO_BLOBS) != 0)
+					&& (fInfo.getContentHash() != null);
+			if (!promised && !blobs.containsKey(hash)
+					&& ((have == null) || !have.contains(hash))) {
+				blobs.put(hash, fInfo);
+				blobOrder.add(hash);
+			}
+		}
+	}
+
+	/**
+	 * Reads a pack into the tree: the blobs into its object store and the
+	 * commits into the tree, and returns the commits, oldest first. Commits
+	 * the tree already has are returned as they are, and blobs it already
+	 * has are skipped. The refs of the pack are put in refs, if not null.
+	 * Returns null, after printing why, if the pack is broken or incomplete;
+	 * no commit is then added.
+	 */
+	public static List<CommitNode> read(InputStream in, CommitTree into,
+			Map<String, String> refs) {
+		MessageDigest md = newDigest();
+		InputStream buffered = new BufferedInputStream(in, CHUNK_SIZE);
+		DigestInputStream digested = new DigestInputStream(buffered, md);
+		DataInputStream data = new DataInputStream(digested);
+		ObjectStore store = new ObjectStore(into.getLocation());
+		ArrayList<Received> received = new ArrayList<Received>();
+		HashMap<String, String> packRefs = new HashMap<String, String>();
+		try {
+			if (!data.readUTF().equals(MAGIC)) {
+				System.out.println("Not a gitlet pack.");
+				return null;
+			}
+			int version = data.readInt();
+			if ((version < 1) || (version > VERSION)) {
+				System.out.println("Not a gitlet pack.");
+				return null;
+			}
+			int refCount = data.readInt();
+			for (int i = 0; i < refCount; ++i) {
+				String name = data.readUTF();
+				packRefs.put(name, data.readUTF());
+			}
+			int commitCount = data.readInt();
+			for (int i = 0; i < commitCount; ++i) {
+				Received r = new Received();
+				r.uid = data.readUTF();
+				r.parentUid = data.readUTF();
+				r.time = new Date(data.readLong());
+				r.msg = data.readUTF();
+				readFiles(data, into, r.added);
+				int deletedCount = data.readInt();
+				for (int j = 0; j < deletedCount; ++j) {
+					r.deleted.add(into.absoluteName(data.readUTF()));
+				}
+				if ((version >= 2) && data.readBoolean()) {
+					r.inherited = new ArrayList<StoredFile>();
+					readFiles(data, into, r.inherited);
+				}
+				received.add(r);
+			}
+			while (data.readBoolean()) {
+				String hash = data.readUTF();
+				ChunkInputStream blob = new ChunkInputStream(data);
+				if (store.contains(hash)) {
+					blob.skipAll();
+				} else if (!store.store(blob, hash)) {
+					System.out.println("The pack is corrupt: blob " + hash
+							+ " does not match its contents.");
+					return null;
+				}
+			}
+			digested.on(false);
+			byte[] checksum = new byte[md.getDigestLength()];
+			byte[] expected = md.digest();
+			data.readFully(checksum);
+			if (!MessageDigest.isEqual(checksum, expected)) {
+				System.out.println("The pack is corrupt: bad checksum.");
+				return null;
+			}
+		} catch (IOException e) {
+			System.out.println("The pack is incomplete.");
+			return null;
+		}
+
+		// Everything arrived. Check that it can be added before adding it.
+		HashSet<String> known = new HashSet<String>();
+		boolean hasPromisor = (store.getPromisor() != null);
+		for (Received r : received) {
+			r.hasParent = r.parentUid.isEmpty() || known.contains(r.parentUid)
+					|| (into.getCommitByUid(r.parentUid) != null);
+			if (!r.hasParent && (r.inherited == null)) {
+				System.out.println("The pack is incomplete: missing commit "
+						+ r.parentUid + ".");
+				return null;
+			}
+			ArrayList<StoredFile> needed = new ArrayList<StoredFile>(r.added);
+			if (!r.hasParent)
+				needed.addAll(r.inherited);
+			for (StoredFile fInfo : needed) {
+				if (!hasPromisor && !store.contains(fInfo.getContentHash())) {
+					System.out.println("The pack is incomplete: missing blob "
+							+ fInfo.getContentHash() + ".");
+					return null;
+				}
+			}
+			known.add(r.uid);
+		}
+		for (String name : packRefs.keySet()) {
+			String uid = packRefs.get(name);
+			if (!known.contains(uid) && (into.getCommitByUid(uid) == null)) {
+				System.out.println("The pack is incomplete: missing commit "
+						+ uid + ".");
+				return null;
+			}
+		}
+		ArrayList<CommitNode> commits = new ArrayList<CommitNode>();
+		for (Received r : received) {
+			CommitNode cnode = into.getCommitByUid(r.uid);
+			if ((cnode == null) && !r.hasParent) {
+				cnode = into.addShallowCommit(r.uid, r.parentUid, r.time, r.msg,
+						r.inherited, r.added, r.deleted);
+			} else if (cnode == null) {
+				cnode = into.addReceivedCommit(r.uid, r.parentUid.isEmpty() ? null
+						: into.getCommitByUid(r.parentUid), r.time, r.msg,
+						r.added, r.deleted);
+			}
+			commits.add(cnode);
+		}
+		if (refs != null)
+			refs.putAll(packRefs);
+		return commits;
+	}
+
+	/**
+	 * Reads files written by writeFiles into files
+	 */
+	private static void readFiles(DataInputStream data, CommitTree into,
+			List<StoredFile> files) throws IOException {
+		int count = data.readInt();
+		for (int i = 0; i < count; ++i) {
+			String fileName = into.absoluteName(data.readUTF());
+			String hash = data.readUTF();
+			long size = data.readLong();
+			long lastModified = data.readLong();
+			files.add(StoredFile.fromBlob(fileName,
+					ObjectStore.storedFileName(hash), size, lastModified));
+		}
+	}
+
+	/**
+	 * The hash of a stored file. Files stored before blobs were hashed are
+	 * hashed now.
+	 */
+	private static String hashOf(StoredFile fInfo, ObjectStore store)
+			throws IOException {
+		if (fInfo.getContentHash() != null)
+			return fInfo.getContentHash();
+		InputStream in = store.open(fInfo.getStoredFileName(),
+				fInfo.isCompressed());
+		try {
+			return ObjectStore.hash(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (Exception e) {
+			throw new IllegalStateException("SHA-1 is not available", e);
+		}
+	}
+
+	/**
+	 * A commit as read from a pack
+	 */
+	private static class Received {
+		String uid;
+		String parentUid;
+		Date time;
+		String msg;
+		ArrayList<StoredFile> added = new ArrayList<StoredFile>();
+		ArrayList<String> deleted = new ArrayList<String>();
+		// Files inherited from the parent, null if they were not sent
+		ArrayList<StoredFile> inherited = null;
+		boolean hasParent; // False if it is received as a shallow boundary
+	}
+
+	/**
+	 * Reads the contents of one blob, sent as chunks each preceded by its
+	 * length and ended by an empty one
+	 */
+	private static class ChunkInputStream extends InputStream {
+		private final DataInputStream data;
+		private int left = 0; // Bytes left in the current chunk
+		private boolean done = false;
+
+		ChunkInputStream(DataInputStream data) {
+			this.data = data;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return (read(b, 0, 1) < 0) ? -1 : (b[0] & 0xff);
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (done)
+				return -1;
+			if (left == 0) {
+				left = data.readInt();
+				if (left == 0) {
+					done = true;
+					return -1;
+				}
+			}
+			int n = data.read(b, off, Math.min(len, left));
+			if (n < 0)
+				throw new IOException("Blob cut short");
+			left -= n;
+			return n;
+		}
+
+		/**
+		 * Reads past the rest of the blob
+		 */
+		void skipAll() throws IOException {
+			byte[] buf = new byte[CHUNK_SIZE];
+			while (read(buf, 0, buf.length) >= 0) {
+				// Nothing to keep
+			}
+		}
+	}
+}
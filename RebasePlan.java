@@ -0,0 +1,151 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The list of commits a rebase replays, oldest first, and what to do with
+ * each of them: pick it, skip it, or reword it with a new message. A plan can
+ * be written to a file, edited, and read back, so that a long interactive
+ * rebase runs in one pass instead of prompting for every commit.
+ *
+ * The file has one line per commit, "pick <id>", "skip <id>" or
+ * "reword <id> <new message>". Anything after the id of a pick or skip line
+ * is ignored, and lines starting with # are comments.
+ */
+public class RebasePlan {
+	private final ArrayList<CommitNode> commits;
+	private final ArrayList<String> messages; // Null if skipped
+
+	/**
+	 * Construct a plan that picks every one of the commits, oldest first
+	 */
+	public RebasePlan(List<CommitNode> commits) {
+		this.commits = new ArrayList<CommitNode>(commits);
+		this.messages = new ArrayList<String>();
+		for (CommitNode c : commits) {
+			this.messages.add(c.getCommitMessage());
+		}
+	}
+
+	/**
+	 * Access the commits, oldest first
+	 */
+	public List<CommitNode> getCommits() {
+		return this.commits;
+	}
+
+	/**
+	 * Access the message of the i-th replayed commit. Null if it is skipped.
+	 */
+	public String getMessage(int i) {
+		return this.messages.get(i);
+	}
+
+	/**
+	 * Returns true if the i-th commit may be skipped. The initial and the
+	 * final commit may not, so that no change is lost.
+	 */
+	public boolean canSkip(int i) {
+		return (i < this.commits.size() - 1)
+				&& (this.commits.get(i).getParent() != null);
+	}
+
+	/**
+	 * Skips the i-th commit. Its changes go into the next replayed commit.
+	 */
+	public void skip(int i) {
+		this.messages.set(i, null);
+	}
+
+	/**
+	 * Replays the i-th commit with a new message
+	 */
+	public void reword(int i, String newMsg) {
+		this.messages.set(i, newMsg);
+	}
+
+	/**
+	 * Writes the plan, with a header explaining its format
+	 */
+	public void write(PrintStream out, String branchName) {
+		out.println("# Rebase onto " + branchName
+				+ ". One line per commit, oldest first:");
+		out.println("#   pick <id>              replay the commit");
+		out.println("#   reword <id> <message>  replay it with a new message");
+		out.println("#   skip <id>              leave it out; its changes go into the next commit");
+		for (int i = 0; i < this.commits.size(); ++i) {
+			CommitNode c = this.commits.get(i);
+			if (this.messages.get(i) == null) {
+				out.println("skip " + c.getCommitId() + " "
+						+ c.getCommitMessage());
+			} else if (this.messages.get(i).equals(c.getCommitMessage())) {
+				out.println("pick " + c.getCommitId() + " "
+						+ c.getCommitMessage());
+			} else {
+				out.println("reword " + c.getCommitId() + " "
+						+ this.messages.get(i));
+			}
+		}
+	}
+
+	/**
+	 * Applies the plan in the file to this plan. The file must list the same
+	 * commits in the same order. Returns false, after printing why, if it
+	 * cannot be read or does not match.
+	 */
+	public boolean read(String fileName) {
+		ArrayList<String> lines = new ArrayList<String>();
+		try {
+			BufferedReader in = new BufferedReader(new FileReader(fileName));
+			try {
+				String line;
+				while ((line = in.readLine()) != null) {
+					line = line.trim();
+					if (!line.isEmpty() && !line.startsWith("#"))
+						lines.add(line);
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			System.out.println("Could not read rebase plan: " + fileName);
+			return false;
+		}
+		if (lines.size() != this.commits.size()) {
+			System.out.println("The rebase plan must list the "
+					+ this.commits.size() + " commits being replayed.");
+			return false;
+		}
+		for (int i = 0; i < lines.size(); ++i) {
+			String[] parts = lines.get(i).split("\\s+", 3);
+			CommitNode c = this.commits.get(i);
+			if ((parts.length < 2)
+					|| !parts[1].equals(Long.toString(c.getCommitId()))) {
+				System.out.println("Expected commit " + c.getCommitId()
+						+ " in rebase plan line: " + lines.get(i));
+				return false;
+			}
+			if (parts[0].equals("pick")) {
+				this.messages.set(i, c.getCommitMessage());
+			} else if (parts[0].equals("skip")) {
+				if (!canSkip(i)) {
+					System.out
+							.println("Cannot skip the initial or final commit: "
+									+ c.getCommitId());
+					return false;
+				}
+				skip(i);
+			} else if (parts[0].equals("reword") && (parts.length == 3)) {
+				reword(i, parts[2]);
+			} else {
+				System.out.println("Invalid rebase plan line: "
+						+ lines.get(i));
+				return false;
+			}
+		}
+		return true;
+	}
+}
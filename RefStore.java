@@ -0,0 +1,310 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * The branches of a repository, kept apart from the CommitTree so that
+ * creating, deleting or switching a branch only touches a few bytes. Each
+ * branch is a loose file, .gitlet/refs/heads/<name>, holding the id of its
+ * head commit. Branches can be packed into .gitlet/packed-refs, one sorted
+ * "<id> refs/heads/<name>" line each, where a loose file overrides its
+ * packed line. .gitlet/HEAD names the current branch as
+ * "ref: refs/heads/<name>".
+ *
+ * The branches fetched from remotes are kept the same way, as
+ * refs/remotes/<remote>/<branch>, by a store of their own.
+ *
+ * Changes are kept in memory until flushed, which is done after the tree
+ * they point into has been saved, so a branch never points to a commit that
+ * is not on disk.
+ */
+public class RefStore {
+	public static final String HEAD_NAME = "HEAD";
+	public static final String HEADS_DIR = "refs/heads";
+	public static final String REMOTES_DIR = "refs/remotes";
+	public static final String PACKED_NAME = "packed-refs";
+	private static final String HEAD_PREFIX = "ref: " + HEADS_DIR + "/";
+
+	private final String gitletDir;
+	private final String refsDir; // HEADS_DIR or REMOTES_DIR
+	private TreeMap<String, Long> packed = null; // Read when first needed
+	private final TreeMap<String, Long> loose = new TreeMap<String, Long>();
+	private final TreeMap<String, Long> pending = new TreeMap<String, Long>();
+	private final TreeSet<String> pendingDeletes = new TreeSet<String>();
+	private String head = null;
+	private boolean headChanged = false;
+
+	/**
+	 * Construct the store of the branches of the given .gitlet directory
+	 */
+	public RefStore(String gitletDir) {
+		this(gitletDir, HEADS_DIR);
+	}
+
+	/**
+	 * Construct the store of the refs under refsDir, HEADS_DIR or
+	 * REMOTES_DIR, of the given .gitlet directory
+	 */
+	public RefStore(String gitletDir, String refsDir) {
+		this.gitletDir = gitletDir;
+		this.refsDir = refsDir;
+	}
+
+	/**
+	 * Returns true if the repository keeps its branches here. Trees saved
+	 * before the ref store existed keep them in the CommitTree.
+	 */
+	public boolean exists() {
+		return headChanged || new File(gitletDir, HEAD_NAME).isFile();
+	}
+
+	/**
+	 * Returns true if a branch name can be stored as a ref file
+	 */
+	public static boolean isValidName(String name) {
+		return (name.length() > 0) && !name.startsWith("/")
+				&& !name.endsWith("/") && !name.contains("..")
+				&& !name.contains("//") && !name.matches(".*\\s.*");
+	}
+
+	/**
+	 * Returns the id of the head commit of the branch, or -1 if there is no
+	 * such branch
+	 */
+	public long resolve(String name) {
+		if (pendingDeletes.contains(name))
+			return -1;
+		Long id = pending.get(name);
+		if (id != null)
+			return id;
+		id = loose.get(name);
+		if (id == null) {
+			id = readLoose(name);
+			if (id == null)
+				id = getPacked().get(name);
+			if (id == null)
+				return -1;
+			loose.put(name, id);
+		}
+		return id;
+	}
+
+	/**
+	 * Points the branch at the commit, creating it if needed
+	 */
+	public void update(String name, long commitId) {
+		pendingDeletes.remove(name);
+		pending.put(name, commitId);
+	}
+
+	/**
+	 * Deletes the branch
+	 */
+	public void delete(String name) {
+		pending.remove(name);
+		loose.remove(name);
+		pendingDeletes.add(name);
+	}
+
+	/**
+	 * Access the name of the current branch
+	 */
+	public String getHead() {
+		if (head == null) {
+			try {
+				String ref = new String(Files.readAllBytes(new File(gitletDir,
+						HEAD_NAME).toPath()), StandardCharsets.UTF_8).trim();
+				if (ref.startsWith(HEAD_PREFIX))
+					head = ref.substring(HEAD_PREFIX.length());
+			} catch (IOException e) {
+				// No HEAD. The caller reports the missing branch.
+			}
+		}
+		return head;
+	}
+
+	/**
+	 * Makes the branch the current one
+	 */
+	public void setHead(String name) {
+		head = name;
+		headChanged = true;
+	}
+
+	/**
+	 * Returns every branch and the id of its head commit, sorted by name
+	 */
+	public TreeMap<String, Long> list() {
+		TreeMap<String, Long> all = new TreeMap<String, Long>(getPacked());
+		listLoose(new File(gitletDir, refsDir), "", all);
+		all.putAll(pending);
+		for (String name : pendingDeletes) {
+			all.remove(name);
+		}
+		return all;
+	}
+
+	/**
+	 * Writes the changes made since the last flush. Returns false, after
+	 * printing why, if they could not all be written.
+	 */
+	public boolean flush() {
+		try {
+			for (String name : pending.keySet()) {
+				File f = looseFile(name);
+				f.getParentFile().mkdirs();
+				AtomicFile.write(f, (pending.get(name) + "\n")
+						.getBytes(StandardCharsets.UTF_8), true);
+				loose.put(name, pending.get(name));
+			}
+			boolean repack = false;
+			for (String name : pendingDeletes) {
+				deleteLoose(name);
+				repack = repack || getPacked().containsKey(name);
+			}
+			if (repack) {
+				TreeMap<String, Long> remaining = new TreeMap<String, Long>(
+						getPacked());
+				remaining.keySet().removeAll(pendingDeletes);
+				writePacked(remaining);
+			}
+			if (headChanged) {
+				AtomicFile.write(new File(gitletDir, HEAD_NAME), (HEAD_PREFIX
+						+ head + "\n").getBytes(StandardCharsets.UTF_8), true);
+			}
+			AtomicFile.syncDirectory(new File(gitletDir));
+		} catch (IOException e) {
+			System.out.println("Could not write branches to: " + gitletDir
+					+ "/" + refsDir);
+			return false;
+		}
+		pending.clear();
+		pendingDeletes.clear();
+		headChanged = false;
+		return true;
+	}
+
+	/**
+	 * Moves every loose branch into packed-refs, so that thousands of
+	 * branches are one file. Flushes pending changes first.
+	 */
+	public boolean pack() {
+		if (!flush())
+			return false;
+		TreeMap<String, Long> all = list();
+		try {
+			writePacked(all);
+		} catch (IOException e) {
+			System.out.println("Could not write branches to: " + gitletDir
+					+ "/" + PACKED_NAME);
+			return false;
+		}
+		for (String name : all.keySet()) {
+			deleteLoose(name);
+		}
+		loose.clear();
+		return true;
+	}
+
+	/**
+	 * Reads packed-refs once
+	 */
+	private TreeMap<String, Long> getPacked() {
+		if (packed == null) {
+			packed = new TreeMap<String, Long>();
+			File f = new File(gitletDir, PACKED_NAME);
+			if (f.isFile()) {
+				try {
+					List<String> lines = Files.readAllLines(f.toPath(),
+							StandardCharsets.UTF_8);
+					for (String line : lines) {
+						if (line.startsWith("#"))
+							continue;
+						String[] parts = line.trim().split(" ", 2);
+						if ((parts.length == 2)
+								&& parts[1].startsWith(refsDir + "/")) {
+							packed.put(parts[1].substring(refsDir.length() + 1),
+									Long.parseLong(parts[0]));
+						}
+					}
+				} catch (Exception e) {
+					System.out.println("Could not read branches from: "
+							+ f.getPath());
+				}
+			}
+		}
+		return packed;
+	}
+
+	/**
+	 * Replaces the packed refs of this store. Those of other stores are kept.
+	 */
+	private void writePacked(TreeMap<String, Long> refs) throws IOException {
+		StringBuilder sb = new StringBuilder("# pack-refs\n");
+		File f = new File(gitletDir, PACKED_NAME);
+		if (f.isFile()) {
+			for (String line : Files.readAllLines(f.toPath(),
+					StandardCharsets.UTF_8)) {
+				if (!line.startsWith("#")
+						&& !line.contains(" " + refsDir + "/")) {
+					sb.append(line).append('\n');
+				}
+			}
+		}
+		for (String name : refs.keySet()) {
+			sb.append(refs.get(name)).append(' ').append(refsDir).append('/')
+					.append(name).append('\n');
+		}
+		AtomicFile.write(new File(gitletDir, PACKED_NAME), sb.toString()
+				.getBytes(StandardCharsets.UTF_8), true);
+		packed = refs;
+	}
+
+	private Long readLoose(String name) {
+		File f = looseFile(name);
+		if (!f.isFile())
+			return null;
+		try {
+			return Long.parseLong(new String(Files.readAllBytes(f.toPath()),
+					StandardCharsets.UTF_8).trim());
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	private void listLoose(File dir, String prefix, TreeMap<String, Long> all) {
+		File[] entries = dir.listFiles();
+		if (entries == null)
+			return;
+		for (File f : entries) {
+			if (f.isDirectory()) {
+				listLoose(f, prefix + f.getName() + "/", all);
+			} else if (!(f.getName().startsWith(AtomicFile.TEMP_PREFIX) && f
+					.getName().endsWith(".tmp"))) {
+				Long id = readLoose(prefix + f.getName());
+				if (id != null)
+					all.put(prefix + f.getName(), id);
+			}
+		}
+	}
+
+	/**
+	 * Deletes the loose file of a branch, and the directories of its name
+	 * that are left empty
+	 */
+	private void deleteLoose(String name) {
+		File heads = new File(gitletDir, refsDir);
+		File f = looseFile(name);
+		while (!f.equals(heads) && f.delete()) {
+			f = f.getParentFile();
+		}
+	}
+
+	private File looseFile(String name) {
+		return new File(gitletDir + "/" + refsDir, name);
+	}
+}
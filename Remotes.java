@@ -0,0 +1,112 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.TreeMap;
+
+/**
+ * The remotes of a repository: other gitlet repositories on local paths that
+ * commits are fetched from and pushed to. They are kept in .gitlet/remotes,
+ * one "<name> <.gitlet directory>" line each.
+ */
+public class Remotes {
+	// Name of the file in .gitlet
+	public static final String REMOTES_NAME = "remotes";
+
+	private final String gitletDir;
+
+	/**
+	 * Construct the remotes of the given .gitlet directory
+	 */
+	public Remotes(String gitletDir) {
+		this.gitletDir = gitletDir;
+	}
+
+	/**
+	 * Returns the .gitlet directory of the remote, or null if there is no
+	 * remote with that name
+	 */
+	public String get(String name) {
+		return read().get(name);
+	}
+
+	/**
+	 * Adds a remote. The path names the remote's .gitlet directory or the
+	 * directory that holds it. Returns false, after printing why, if it could
+	 * not be added.
+	 */
+	public boolean add(String name, String path) {
+		if (!RefStore.isValidName(name) || name.contains("/")) {
+			System.out.println("Not a valid remote name.");
+			return false;
+		}
+		TreeMap<String, String> remotes = read();
+		if (remotes.containsKey(name)) {
+			System.out.println("A remote with that name already exists.");
+			return false;
+		}
+		remotes.put(name, gitletDir(path));
+		return write(remotes);
+	}
+
+	/**
+	 * Returns the absolute .gitlet directory of a repository, given as that
+	 * directory or the directory that holds it
+	 */
+	public static String gitletDir(String path) {
+		File dir = new File(path).getAbsoluteFile().toPath().normalize()
+				.toFile();
+		if (!dir.getName().equals(".gitlet")) {
+			dir = new File(dir, ".gitlet");
+		}
+		return dir.getPath();
+	}
+
+	/**
+	 * Removes a remote. Returns false, after printing why, if it could not be
+	 * removed.
+	 */
+	public boolean remove(String name) {
+		TreeMap<String, String> remotes = read();
+		if (remotes.remove(name) == null) {
+			System.out.println("A remote with that name does not exist.");
+			return false;
+		}
+		return write(remotes);
+	}
+
+	private TreeMap<String, String> read() {
+		TreeMap<String, String> remotes = new TreeMap<String, String>();
+		File f = new File(gitletDir, REMOTES_NAME);
+		if (f.isFile()) {
+			try {
+				for (String line : Files.readAllLines(f.toPath(),
+						StandardCharsets.UTF_8)) {
+					String[] parts = line.split(" ", 2);
+					if (parts.length == 2)
+						remotes.put(parts[0], parts[1]);
+				}
+			} catch (IOException e) {
+				System.out.println("Could not read remotes from: "
+						+ f.getPath());
+			}
+		}
+		return remotes;
+	}
+
+	private boolean write(TreeMap<String, String> remotes) {
+		StringBuilder sb = new StringBuilder();
+		for (String name : remotes.keySet()) {
+			sb.append(name).append(' ').append(remotes.get(name)).append('\n');
+		}
+		File f = new File(gitletDir, REMOTES_NAME);
+		try {
+			AtomicFile.write(f, sb.toString().getBytes(StandardCharsets.UTF_8),
+					true);
+		} catch (IOException e) {
+			System.out.println("Could not write remotes to: " + f.getPath());
+			return false;
+		}
+		return true;
+	}
+}
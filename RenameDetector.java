@@ -0,0 +1,250 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+/**
+ * Finds files that were moved between two snapshots. Files deleted from the
+ * first snapshot are paired with files added in the second one when their
+ * contents are similar enough. Similarity is estimated from MinHash
+ * signatures of the lines of each file, and candidate pairs are found by
+ * locality sensitive hashing of the signature bands, so no pair of files is
+ * ever diffed in full.
+ */
+public class RenameDetector {
+	// Number of hash functions in a signature
+	public static final int SIGNATURE_SIZE = 64;
+	// Signature values per band. Files sharing a band are candidates.
+	private static final int ROWS_PER_BAND = 4;
+	// Fraction of matching signature values needed to call it a rename
+	private static final double MIN_SIMILARITY = 0.5;
+
+	/**
+	 * A possible pairing of a deleted and an added file
+	 */
+	private static class Candidate {
+		private final String from;
+		private final String to;
+		private final double similarity;
+
+		private Candidate(String from, String to, double similarity) {
+			this.from = from;
+			this.to = to;
+			this.similarity = similarity;
+		}
+	}
+
+	/**
+	 * Returns a map of <old absolute file name, new absolute file name> for
+	 * the files renamed between before and after. Each file takes part in at
+	 * most one rename. Signatures are computed on the pool and cached in the
+	 * StoredFile.
+	 */
+	public static TreeMap<String, String> detect(
+			Map<String, StoredFile> before, Map<String, StoredFile> after,
+			WorkerPool pool) {
+		TreeMap<String, StoredFile> deleted = new TreeMap<String, StoredFile>();
+		TreeMap<String, StoredFile> added = new TreeMap<String, StoredFile>();
+		for (String fn : before.keySet()) {
+			if (!after.containsKey(fn))
+				deleted.put(fn, before.get(fn));
+		}
+		for (String fn : after.keySet()) {
+			if (!before.containsKey(fn))
+				added.put(fn, after.get(fn));
+		}
+		TreeMap<String, String> renames = new TreeMap<String, String>();
+		if (deleted.isEmpty() || added.isEmpty())
+			return renames;
+
+		// Unchanged contents are paired without looking at the files
+		HashMap<String, String> deletedByContents = new HashMap<String, String>();
+		for (String fn : deleted.keySet()) {
+			deletedByContents.put(deleted.get(fn).getStoredFileName(), fn);
+		}
+		for (String fn : new ArrayList<String>(added.keySet())) {
+			String from = deletedByContents.remove(added.get(fn)
+					.getStoredFileName());
+			if ((from != null) && deleted.containsKey(from)) {
+				renames.put(from, fn);
+				deleted.remove(from);
+				added.remove(fn);
+			}
+		}
+		if (deleted.isEmpty() || added.isEmpty())
+			return renames;
+
+		computeSignatures(deleted, pool);
+		computeSignatures(added, pool);
+
+		// Bucket the deleted files by each band of their signatures
+		HashMap<String, ArrayList<String>> buckets = new HashMap<String, ArrayList<String>>();
+		for (String fn : deleted.keySet()) {
+			int[] sig = deleted.get(fn).getSignature();
+			if ((sig == null) || (sig.length == 0))
+				continue;
+			for (String key : bandKeys(sig)) {
+				ArrayList<String> bucket = buckets.get(key);
+				if (bucket == null) {
+					bucket = new ArrayList<String>();
+					buckets.put(key, bucket);
+				}
+				bucket.add(fn);
+			}
+		}
+		// Score only the pairs that share at least one band
+		ArrayList<Candidate> candidates = new ArrayList<Candidate>();
+		for (String to : added.keySet()) {
+			int[] sig = added.get(to).getSignature();
+			if ((sig == null) || (sig.length == 0))
+				continue;
+			HashSet<String> seen = new HashSet<String>();
+			for (String key : bandKeys(sig)) {
+				ArrayList<String> bucket = buckets.get(key);
+				if (bucket == null)
+					continue;
+				for (String from : bucket) {
+					if (!seen.add(from))
+						continue;
+					double similarity = similarity(deleted.get(from)
+							.getSignature(), sig);
+					if (similarity >= MIN_SIMILARITY) {
+						candidates.add(new Candidate(from, to, similarity));
+					}
+				}
+			}
+		}
+		// Best pairs first. Ties are broken by name to stay deterministic.
+		Collections.sort(candidates, new Comparator<Candidate>() {
+			@Override
+			public int compare(Candidate x, Candidate y) {
+				int c = Double.compare(y.similarity, x.similarity);
+				if (c == 0)
+					c = x.from.compareTo(y.from);
+				if (c == 0)
+					c = x.to.compareTo(y.to);
+				return c;
+			}
+		});
+		HashSet<String> used = new HashSet<String>();
+		for (Candidate c : candidates) {
+			if (used.contains(c.from) || used.contains(c.to))
+				continue;
+			used.add(c.from);
+			used.add(c.to);
+			renames.put(c.from, c.to);
+		}
+		return renames;
+	}
+
+	/**
+	 * Computes the MinHash signature of the contents: for each of the hash
+	 * functions, the smallest hash of any line. Returns an empty signature
+	 * for a file without any text, which is similar to nothing.
+	 */
+	public static int[] signature(byte[] contents) {
+		int[] sig = new int[SIGNATURE_SIZE];
+		Arrays.fill(sig, Integer.MAX_VALUE);
+		boolean empty = true;
+		int start = 0;
+		for (int i = 0; i <= contents.length; ++i) {
+			if ((i < contents.length) && (contents[i] != '\n'))
+				continue;
+			// Hash the line [start, i), ignoring surrounding white space
+			int s = start, e = i;
+			while ((s < e) && (contents[s] <= ' '))
+				++s;
+			while ((e > s) && (contents[e - 1] <= ' '))
+				--e;
+			start = i + 1;
+			if (s == e)
+				continue;
+			empty = false;
+			long h = 1125899906842597L;
+			for (int j = s; j < e; ++j) {
+				h = 31 * h + contents[j];
+			}
+			for (int k = 0; k < SIGNATURE_SIZE; ++k) {
+				int v = (int) (mix(h + k * 0x9E3779B97F4A7C15L) >>> 33);
+				if (v < sig[k])
+					sig[k] = v;
+			}
+		}
+		return empty ? new int[0] : sig;
+	}
+
+	/**
+	 * Estimated similarity of two files: the fraction of equal signature
+	 * values
+	 */
+	private static double similarity(int[] first, int[] second) {
+		int same = 0;
+		for (int k = 0; k < SIGNATURE_SIZE; ++k) {
+			if (first[k] == second[k])
+				++same;
+		}
+		return (double) same / SIGNATURE_SIZE;
+	}
+
+	/**
+	 * Returns one bucket key per band of the signature
+	 */
+	private static ArrayList<String> bandKeys(int[] sig) {
+		ArrayList<String> keys = new ArrayList<String>();
+		for (int band = 0; band < SIGNATURE_SIZE; band += ROWS_PER_BAND) {
+			StringBuilder key = new StringBuilder().append(band);
+			for (int k = band; k < band + ROWS_PER_BAND; ++k) {
+				key.append(':').append(sig[k]);
+			}
+			keys.add(key.toString());
+		}
+		return keys;
+	}
+
+	/**
+	 * Computes the signatures that are not cached yet, on the workers of the
+	 * pool
+	 */
+	private static void computeSignatures(Map<String, StoredFile> files,
+			WorkerPool pool) {
+		ArrayList<Future<Object>> pending = new ArrayList<Future<Object>>();
+		for (final StoredFile fInfo : files.values()) {
+			if (fInfo.getSignature() != null)
+				continue;
+			pending.add(pool.submit(new Callable<Object>() {
+				@Override
+				public Object call() {
+					byte[] contents = fInfo.readContents();
+					if (contents != null)
+						fInfo.setSignature(signature(contents));
+					return null;
+				}
+			}));
+		}
+		for (Future<Object> f : pending) {
+			try {
+				f.get();
+			} catch (Exception e) {
+				// The file is left without a signature and is not paired
+			}
+		}
+	}
+
+	/**
+	 * Scrambles the bits of a 64 bit value (the finalizer of MurmurHash3)
+	 */
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
@@ -0,0 +1,182 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * The lock of a repository, held on .gitlet/lock while a command runs so that
+ * gitlet processes sharing a repository do not overwrite each other's work.
+ * Commands that change the repository hold it alone. Read-only commands take
+ * no lock: they read a published generation of the tree (see TreeStore),
+ * which no writer changes. A process that cannot get the lock retries until
+ * a timeout, set with -Dgitlet.lockTimeout=seconds (default 30), and then
+ * gives up without touching the repository.
+ *
+ * The lock is a FileChannel lock, which the operating system releases when
+ * its process exits, so a crashed process never leaves the repository
+ * locked. The holder writes its pid and command into the lock file
+ * to be named to waiting processes; a pid whose process has exited is stale
+ * and is not reported.
+ *
+ * Within a process the lock is reentrant: the commands of a batch run under
+ * the lock taken for the batch. A process may hold the locks of several
+ * repositories, as push does.
+ */
+public class RepoLock {
+	// Name of the lock file in .gitlet
+	public static final String LOCK_NAME = "lock";
+	private static final long DEFAULT_TIMEOUT_SECONDS = 30;
+	private static final long MAX_RETRY_MILLIS = 100;
+	// Commands that only read the repository
+	private static final HashSet<String> READ_ONLY = new HashSet<String>(
+			Arrays.asList("log", "global-log", "find", "status"));
+
+	// The locks held by this process, by .gitlet directory, shared by nested
+	// commands
+	private static final HashMap<String, Held> held = new HashMap<String, Held>();
+
+	private final String key; // Null if there was nothing to lock
+	private boolean released = false;
+
+	/**
+	 * A lock held by this process
+	 */
+	private static class Held {
+		final FileChannel channel;
+		final FileLock lock;
+		int holdCount = 1;
+
+		Held(FileChannel channel, FileLock lock) {
+			this.channel = channel;
+			this.lock = lock;
+		}
+	}
+
+	private RepoLock(String key) {
+		this.key = key;
+	}
+
+	/**
+	 * Takes the lock of the repository in the current directory if the
+	 * command in args needs it. Read-only commands and those that create or
+	 * serve the repository (init, daemon) are not locked here. Returns null,
+	 * after printing why, if the lock could not be taken in time.
+	 */
+	public static RepoLock acquire(String[] args) {
+		String command = (args.length == 0) ? "" : args[0];
+		if (command.equals("init") || command.equals("daemon")
+				|| READ_ONLY.contains(command)) {
+			return new RepoLock(null);
+		}
+		File gitletDir = new File(System.getProperty("user.dir") + "/.gitlet");
+		if (!gitletDir.isDirectory()) {
+			return new RepoLock(null); // The command reports it
+		}
+		return acquire(gitletDir, String.join(" ", args));
+	}
+
+	/**
+	 * Takes the lock of the given .gitlet directory for the command. Returns
+	 * null, after printing why, if it could not be taken in time.
+	 */
+	public static synchronized RepoLock acquire(File gitletDir, String command) {
+		String key = gitletDir.getAbsoluteFile().toPath().normalize()
+				.toString();
+		Held h = held.get(key);
+		if (h != null) {
+			++h.holdCount; // Already held by an enclosing command
+			return new RepoLock(key);
+		}
+		long timeoutMillis = 1000 * Long.getLong("gitlet.lockTimeout",
+				DEFAULT_TIMEOUT_SECONDS);
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		FileChannel ch = null;
+		try {
+			ch = FileChannel.open(new File(gitletDir, LOCK_NAME).toPath(),
+					StandardOpenOption.CREATE, StandardOpenOption.READ,
+					StandardOpenOption.WRITE);
+			long retryMillis = 5;
+			while (true) {
+				FileLock lock = ch.tryLock();
+				if (lock != null) {
+					ch.truncate(0);
+					ch.write(ByteBuffer.wrap((ProcessHandle.current().pid()
+							+ " " + command + "\n")
+							.getBytes(StandardCharsets.UTF_8)), 0);
+					held.put(key, new Held(ch, lock));
+					return new RepoLock(key);
+				}
+				if (System.currentTimeMillis() >= deadline) {
+					System.out.println("Timed out waiting for the repository lock"
+							+ describeOwner(ch) + ".");
+					ch.close();
+					return null;
+				}
+				Thread.sleep(retryMillis);
+				retryMillis = Math.min(2 * retryMillis, MAX_RETRY_MILLIS);
+			}
+		} catch (Exception e) {
+			System.out.println("Could not lock the repository: "
+					+ gitletDir.getPath());
+			try {
+				if (ch != null)
+					ch.close();
+			} catch (IOException ce) {
+				// Closing anyway
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Releases the lock, once the outermost command holding it is done
+	 */
+	public void release() {
+		synchronized (RepoLock.class) {
+			if ((this.key == null) || this.released)
+				return;
+			this.released = true;
+			Held h = held.get(this.key);
+			if (--h.holdCount > 0)
+				return;
+			held.remove(this.key);
+			try {
+				h.channel.truncate(0); // No longer the owner
+				h.lock.release();
+				h.channel.close();
+			} catch (IOException e) {
+				// Closing the channel releases the lock anyway
+			}
+		}
+	}
+
+	/**
+	 * Names the holder of the lock, if the lock file names a
+	 * process that is still running
+	 */
+	private static String describeOwner(FileChannel ch) {
+		try {
+			ByteBuffer buf = ByteBuffer.allocate(4096);
+			ch.read(buf, 0);
+			String owner = new String(buf.array(), 0, buf.position(),
+					StandardCharsets.UTF_8).trim();
+			int space = owner.indexOf(' ');
+			if (space > 0) {
+				long pid = Long.parseLong(owner.substring(0, space));
+				if (ProcessHandle.of(pid).isPresent()) {
+					return " held by process " + pid + " ("
+							+ owner.substring(space + 1) + ")";
+				}
+			}
+		} catch (Exception e) {
+			// Nothing to report
+		}
+		return "";
+	}
+}
@@ -0,0 +1,135 @@
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The sparse checkout configuration of a repository. It is a list of
+ * patterns, relative to the repository's parent directory, stored one per
+ * line in .gitlet/sparse-checkout. A pattern containing any of *?[{ is a
+ * glob; any other pattern matches that file or everything below that
+ * directory. Files outside the patterns are never written, deleted or looked
+ * at in the working directory. Without a configuration every file is
+ * included.
+ */
+public class SparseCheckout {
+	// Name of the file in .gitlet that holds the patterns
+	private static final String CONFIG_FILE_NAME = "sparse-checkout";
+
+	private final Path repoParent;
+	private final ArrayList<String> patterns = new ArrayList<String>();
+	private final ArrayList<PathMatcher> globs = new ArrayList<PathMatcher>();
+	private final ArrayList<String> prefixes = new ArrayList<String>();
+
+	/**
+	 * Construct the configuration for the repository in repositoryParentDir
+	 * from the given patterns. No patterns means no restriction.
+	 */
+	public SparseCheckout(String repositoryParentDir, List<String> patterns) {
+		this.repoParent = Paths.get(repositoryParentDir).toAbsolutePath()
+				.normalize();
+		for (String p : patterns) {
+			p = p.trim().replace('\\', '/');
+			while (p.startsWith("/"))
+				p = p.substring(1);
+			while (p.endsWith("/"))
+				p = p.substring(0, p.length() - 1);
+			if (p.length() == 0 || p.startsWith("#"))
+				continue;
+			this.patterns.add(p);
+			if (p.matches(".*[*?\\[{].*")) {
+				globs.add(FileSystems.getDefault().getPathMatcher("glob:" + p));
+			} else {
+				prefixes.add(p);
+			}
+		}
+	}
+
+	/**
+	 * Reads the configuration of the repository in repositoryParentDir
+	 */
+	public static SparseCheckout load(String repositoryParentDir) {
+		ArrayList<String> lines = new ArrayList<String>();
+		File config = configFile(repositoryParentDir);
+		if (config.isFile()) {
+			try {
+				lines.addAll(Files.readAllLines(config.toPath(),
+						StandardCharsets.UTF_8));
+			} catch (Exception e) {
+				System.out.println("Could not read sparse checkout patterns: "
+						+ config.getPath());
+			}
+		}
+		return new SparseCheckout(repositoryParentDir, lines);
+	}
+
+	/**
+	 * Writes the configuration to .gitlet. Without patterns the file is
+	 * removed, which turns sparse checkout off.
+	 */
+	public boolean save() {
+		File config = configFile(repoParent.toString());
+		try {
+			if (patterns.isEmpty()) {
+				Files.deleteIfExists(config.toPath());
+			} else {
+				AtomicFile.write(config, (String.join("\n", patterns) + "\n")
+						.getBytes(StandardCharsets.UTF_8), false);
+			}
+		} catch (Exception e) {
+			System.out.println("Could not write sparse checkout patterns: "
+					+ config.getPath());
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Access patterns
+	 */
+	public List<String> getPatterns() {
+		return this.patterns;
+	}
+
+	/**
+	 * Returns true if every file is included
+	 */
+	public boolean isDisabled() {
+		return this.patterns.isEmpty();
+	}
+
+	/**
+	 * Returns true if the file with the given absolute name is in the sparse
+	 * checkout. Only the name is examined, never the file itself.
+	 */
+	public boolean includes(String absFileName) {
+		if (isDisabled())
+			return true;
+		Path path = Paths.get(absFileName).normalize();
+		if (!path.startsWith(repoParent))
+			return false;
+		Path relative = repoParent.relativize(path);
+		String name = relative.toString().replace('\\', '/');
+		for (String prefix : prefixes) {
+			if (name.equals(prefix) || name.startsWith(prefix + "/"))
+				return true;
+		}
+		for (PathMatcher glob : globs) {
+			if (glob.matches(relative))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Location of the configuration of the repository in repositoryParentDir
+	 */
+	private static File configFile(String repositoryParentDir) {
+		return new File(repositoryParentDir + "/.gitlet/" + CONFIG_FILE_NAME);
+	}
+}
@@ -0,0 +1,345 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+/**
+ * The files staged for the next commit of each branch, kept in
+ * .gitlet/index apart from the CommitTree. A file is stored in the object
+ * store when it is added, and the index only records its blob, size and
+ * timestamp, so staging a file costs one line of I/O and committing does not
+ * copy any file again.
+ *
+ * The index is a log that is only appended to, one record per line:
+ *
+ * <pre>
+ * A branch size lastModified blob path   staged for addition
+ * R branch path                          marked for removal
+ * U branch path                          unstaged
+ * C branch                               every file unstaged
+ * </pre>
+ *
+ * The last record of a path wins. A record cut short by a crash is ignored.
+ * Once the log is mostly records that no longer count it is rewritten with
+ * only the staged files. Records are kept in memory until flushed, which is
+ * done after the tree has been saved, so a commit never loses the files it
+ * was made from.
+ */
+public class StagingIndex {
+	// Name of the index file in .gitlet
+	public static final String INDEX_NAME = "index";
+	// The log is rewritten once it has this many more records than entries
+	private static final int COMPACT_SLACK = 256;
+
+	private final String gitletDir;
+	// <branch, <absolute file name, staged version, or null if removed>>
+	private TreeMap<String, TreeMap<String, StoredFile>> staged = null;
+	private final ArrayList<String> pending = new ArrayList<String>();
+	private int records = 0; // Records in the file
+	private boolean rewrite = false; // The file ends with a broken record
+
+	/**
+	 * Construct the index of the given .gitlet directory
+	 */
+	public StagingIndex(String gitletDir) {
+		this.gitletDir = gitletDir;
+	}
+
+	/**
+	 * Returns true if the index has been written. Trees saved before it
+	 * existed keep their staged files in the in progress commits.
+	 */
+	public boolean exists() {
+		return !pending.isEmpty() || new File(gitletDir, INDEX_NAME).isFile();
+	}
+
+	/**
+	 * Returns true if nothing is staged in the branch
+	 */
+	public boolean isEmpty(String branch) {
+		TreeMap<String, StoredFile> files = getStaged().get(branch);
+		return (files == null) || files.isEmpty();
+	}
+
+	/**
+	 * Access the staged version of the file, null if it is not staged for
+	 * addition
+	 */
+	public StoredFile get(String branch, String absFileName) {
+		TreeMap<String, StoredFile> files = getStaged().get(branch);
+		return (files == null) ? null : files.get(absFileName);
+	}
+
+	/**
+	 * Returns true if anything, addition or removal, is staged for the file
+	 */
+	public boolean contains(String branch, String absFileName) {
+		TreeMap<String, StoredFile> files = getStaged().get(branch);
+		return (files != null) && files.containsKey(absFileName);
+	}
+
+	/**
+	 * Returns the files staged for addition, sorted by absolute file name
+	 */
+	public TreeMap<String, StoredFile> getAdded(String branch) {
+		TreeMap<String, StoredFile> added = new TreeMap<String, StoredFile>();
+		TreeMap<String, StoredFile> files = getStaged().get(branch);
+		if (files != null) {
+			for (String fn : files.keySet()) {
+				if (files.get(fn) != null)
+					added.put(fn, files.get(fn));
+			}
+		}
+		return added;
+	}
+
+	/**
+	 * Returns the files marked for removal, sorted by absolute file name
+	 */
+	public TreeSet<String> getRemoved(String branch) {
+		TreeSet<String> removed = new TreeSet<String>();
+		TreeMap<String, StoredFile> files = getStaged().get(branch);
+		if (files != null) {
+			for (String fn : files.keySet()) {
+				if (files.get(fn) == null)
+					removed.add(fn);
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 * Stores the files, on a pool of workers, and stages them for addition.
+	 * Returns false, after printing which, if any file could not be stored;
+	 * the others are staged.
+	 */
+	public boolean add(String branch, Collection<String> fileNames) {
+		final String repoLoc = new File(gitletDir).getParent();
+		ArrayList<StoredFile> toStore = new ArrayList<StoredFile>();
+		ArrayList<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+		WorkerPool pool = new WorkerPool();
+		for (String fileName : fileNames) {
+			final StoredFile fInfo = new StoredFile(
+					new File(fileName).getAbsolutePath());
+			toStore.add(fInfo);
+			results.add(pool.submit(new Callable<Boolean>() {
+				@Override
+				public Boolean call() {
+					return fInfo.storeFile(repoLoc);
+				}
+			}));
+		}
+		boolean allStored = true;
+		for (int i = 0; i < results.size(); ++i) {
+			boolean done;
+			try {
+				done = results.get(i).get();
+			} catch (Exception e) {
+				done = false;
+			}
+			if (done) {
+				this.add(branch, toStore.get(i));
+			} else {
+				System.out.println("Could not store file: "
+						+ toStore.get(i).getOriginalFileName());
+				allStored = false;
+			}
+		}
+		pool.shutdown();
+		return allStored;
+	}
+
+	/**
+	 * Stages an already stored version of a file for addition
+	 */
+	public void add(String branch, StoredFile fInfo) {
+		append(addRecord(branch, fInfo.getOriginalFileName(), fInfo));
+	}
+
+	/**
+	 * Marks the file for removal
+	 */
+	public void remove(String branch, String absFileName) {
+		append("R " + branch + " " + absFileName);
+	}
+
+	/**
+	 * Unstages the file
+	 */
+	public void unstage(String branch, String absFileName) {
+		append("U " + branch + " " + absFileName);
+	}
+
+	/**
+	 * Unstages every file of the branch
+	 */
+	public void clear(String branch) {
+		if (getStaged().containsKey(branch))
+			append("C " + branch);
+	}
+
+	/**
+	 * Writes the records made since the last flush. Returns false, after
+	 * printing why, if they could not be written.
+	 */
+	public boolean flush() {
+		if (pending.isEmpty() && !rewrite)
+			return true;
+		File f = new File(gitletDir, INDEX_NAME);
+		try {
+			ObjectStore.syncPending(); // The blobs of the staged files
+			int live = 0;
+			for (TreeMap<String, StoredFile> files : getStaged().values()) {
+				live += files.size();
+			}
+			if (rewrite || (records + pending.size() > 2 * live + COMPACT_SLACK)) {
+				AtomicFile.write(f, compacted().getBytes(StandardCharsets.UTF_8),
+						true);
+				records = live;
+				rewrite = false;
+			} else {
+				StringBuilder sb = new StringBuilder();
+				for (String record : pending) {
+					sb.append(record).append('\n');
+				}
+				FileOutputStream out = new FileOutputStream(f, true);
+				try {
+					out.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+					out.getChannel().force(false);
+				} finally {
+					out.close();
+				}
+				records += pending.size();
+			}
+		} catch (IOException e) {
+			System.out.println("Could not write staged files to: "
+					+ f.getPath());
+			return false;
+		}
+		pending.clear();
+		return true;
+	}
+
+	/**
+	 * Applies a record to the staged files and keeps it to be written
+	 */
+	private void append(String record) {
+		getStaged();
+		apply(record);
+		pending.add(record);
+	}
+
+	/**
+	 * Reads the index once
+	 */
+	private TreeMap<String, TreeMap<String, StoredFile>> getStaged() {
+		if (staged == null) {
+			staged = new TreeMap<String, TreeMap<String, StoredFile>>();
+			File f = new File(gitletDir, INDEX_NAME);
+			if (f.isFile()) {
+				try {
+					String contents = new String(Files.readAllBytes(f.toPath()),
+							StandardCharsets.UTF_8);
+					List<String> lines = new ArrayList<String>();
+					for (String line : contents.split("\n", -1)) {
+						lines.add(line);
+					}
+					// The last line is empty unless a record was cut short
+					String last = lines.remove(lines.size() - 1);
+					rewrite = (last.length() > 0);
+					for (String line : lines) {
+						apply(line);
+					}
+					records = lines.size();
+				} catch (IOException e) {
+					System.out.println("Could not read staged files from: "
+							+ f.getPath());
+				}
+			}
+		}
+		return staged;
+	}
+
+	/**
+	 * Applies one record. Records that cannot be parsed are ignored.
+	 */
+	private void apply(String record) {
+		String[] parts = record.split(" ", 2);
+		if (parts.length < 2)
+			return;
+		String[] args;
+		switch (parts[0]) {
+		case "A":
+			args = parts[1].split(" ", 5);
+			if (args.length < 5)
+				return;
+			try {
+				files(args[0]).put(args[4], StoredFile.fromBlob(args[4],
+						args[3], Long.parseLong(args[1]),
+						Long.parseLong(args[2])));
+			} catch (NumberFormatException e) {
+				return;
+			}
+			break;
+		case "R":
+		case "U":
+			args = parts[1].split(" ", 2);
+			if (args.length < 2)
+				return;
+			if (parts[0].equals("R")) {
+				files(args[0]).put(args[1], null);
+			} else {
+				files(args[0]).remove(args[1]);
+			}
+			break;
+		case "C":
+			staged.remove(parts[1]);
+			break;
+		default:
+		}
+	}
+
+	/**
+	 * The staged files of the branch, created if needed
+	 */
+	private TreeMap<String, StoredFile> files(String branch) {
+		TreeMap<String, StoredFile> files = staged.get(branch);
+		if (files == null) {
+			files = new TreeMap<String, StoredFile>();
+			staged.put(branch, files);
+		}
+		return files;
+	}
+
+	/**
+	 * The records of the files staged now
+	 */
+	private String compacted() {
+		StringBuilder sb = new StringBuilder();
+		for (String branch : staged.keySet()) {
+			TreeMap<String, StoredFile> files = staged.get(branch);
+			for (String fn : files.keySet()) {
+				StoredFile fInfo = files.get(fn);
+				sb.append((fInfo == null) ? ("R " + branch + " " + fn)
+						: addRecord(branch, fn, fInfo));
+				sb.append('\n');
+			}
+		}
+		return sb.toString();
+	}
+
+	private static String addRecord(String branch, String fileName,
+			StoredFile fInfo) {
+		return "A " + branch + " " + fInfo.getSize() + " "
+				+ fInfo.getLastModified() + " " + fInfo.getStoredFileName()
+				+ " " + fileName;
+	}
+}
@@ -1,4 +1,6 @@
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.InputStream;
 import java.io.Serializable;
 import java.nio.file.Files;
 import java.nio.file.StandardCopyOption;
@@ -14,7 +16,11 @@ public class StoredFile implements Serializable {
 	private String absFileName;
 	private String storedFileName;
 	private Date timestamp;
+	private long size; // Length of the file when it was stored
+	private String contentHash; // SHA-1 of the contents. Null for FILE* copies.
+	private boolean compressed = false; // True for blobs in the ObjectStore
 	private long lastUsedFileNo = 0;
+	private int[] signature; // MinHash of the contents, used to find renames
 
 	/**
 	 * construct StoredFile object
@@ -25,6 +31,25 @@ public class StoredFile implements Serializable {
 		this.absFileName = f.getAbsolutePath();
 	}
 
+	/**
+	 * Rebuilds a stored version of a file from its blob name, size and
+	 * timestamp, as recorded in the staging index or received in a pack
+	 */
+	public static StoredFile fromBlob(String fileName, String storedFileName,
+			long size, long lastModified) {
+		StoredFile fInfo = new StoredFile(fileName);
+		fInfo.storedFileName = storedFileName;
+		fInfo.size = size;
+		fInfo.timestamp = new Date(lastModified);
+		String blobPrefix = ObjectStore.OBJECTS_DIR + "/";
+		if (storedFileName.startsWith(blobPrefix)) {
+			fInfo.compressed = true;
+			fInfo.contentHash = storedFileName.substring(blobPrefix.length())
+					.replace("/", "");
+		}
+		return fInfo;
+	}
+
 	/**
 	 * Access originalFileName
 	 */
@@ -39,6 +64,13 @@ public class StoredFile implements Serializable {
 		return this.timestamp;
 	}
 
+	/**
+	 * Access the length of the file when it was stored
+	 */
+	public long getSize() {
+		return this.size;
+	}
+
 	/**
 	 * Access absolute fileName
 	 */
@@ -46,6 +78,50 @@ public class StoredFile implements Serializable {
 		return this.absFileName;
 	}
 
+	/**
+	 * Access the cached MinHash signature. Null if not computed yet.
+	 */
+	public int[] getSignature() {
+		return this.signature;
+	}
+
+	/**
+	 * Cache the MinHash signature of the stored contents
+	 */
+	public void setSignature(int[] sig) {
+		this.signature = sig;
+	}
+
+	/**
+	 * Returns a copy of this committed version under another file name. The
+	 * stored contents are shared.
+	 */
+	public StoredFile renamedTo(String fileName) {
+		StoredFile renamed = new StoredFile(fileName);
+		renamed.storedFileName = this.storedFileName;
+		renamed.timestamp = this.timestamp;
+		renamed.size = this.size;
+		renamed.contentHash = this.contentHash;
+		renamed.compressed = this.compressed;
+		renamed.signature = this.signature;
+		return renamed;
+	}
+
+	/**
+	 * Access the SHA-1 hash of the contents. Null for files stored before
+	 * blobs were hashed.
+	 */
+	public String getContentHash() {
+		return this.contentHash;
+	}
+
+	/**
+	 * Returns true if the stored contents are a compressed blob
+	 */
+	public boolean isCompressed() {
+		return this.compressed;
+	}
+
 	/**
 	 * Access storedFileName
 	 */
@@ -58,36 +134,97 @@ public class StoredFile implements Serializable {
 	 * with .conflicted at end
 	 */
 	public void restoreConflictedFile() {
-		String currDir = System.getProperty("user.dir");
 		try {
 			// Copy the stored file in .gitlet dir to the original file
-			File srcFile = new File(currDir + "/.gitlet/" + this.storedFileName);
 			File destFile = new File(this.originalFileName + ".conflicted");
-			Files.copy(srcFile.toPath(), destFile.toPath(),
-					StandardCopyOption.REPLACE_EXISTING);
+			InputStream in = openContents();
+			try {
+				Files.copy(in, destFile.toPath(),
+						StandardCopyOption.REPLACE_EXISTING);
+			} finally {
+				in.close();
+			}
 		} catch (Exception e) {
 			return;
 		}
 	}
 
 	/**
-	 * Generate random file with tree and store that in .gitlet
+	 * For merge, write the merged contents to the original file
 	 */
-	public boolean storeFile(String repoLoc, long commitId,
-			FileNameGenerator fng) {
-		// Generate new file name to store
-		// Take the parent dir
-		String currDir = System.getProperty("user.dir");
+	public boolean restoreContents(byte[] contents) {
 		try {
-			// Copy the original file to .gitlet dir under the storedFileName
-			File srcFile = new File(this.originalFileName);
-			this.storedFileName = fng.getUniqueFileName("" + commitId);
-			File destFile = new File(currDir + "/.gitlet/"
-					+ this.storedFileName);
-			Files.copy(srcFile.toPath(), destFile.toPath());
+			File destFile = new File(this.originalFileName);
+			if (destFile.getParentFile() != null)
+				destFile.getParentFile().mkdirs();
+			Files.write(destFile.toPath(), contents);
+		} catch (Exception e) {
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Read the contents of the stored file in .gitlet dir, through the
+	 * BlobCache. FILE* copies are named by a counter, which a repository
+	 * initialized again in the same process reuses, so they are not cached.
+	 * Returns null if it cannot be read.
+	 */
+	public byte[] readContents() {
+		String key = null;
+		if (this.contentHash != null) {
+			key = ObjectStore.current().getLocation(this.storedFileName);
+			byte[] cached = BlobCache.getInstance().get(key);
+			if (cached != null) {
+				return cached;
+			}
+		}
+		try {
+			InputStream in = openContents();
+			try {
+				ByteArrayOutputStream out = new ByteArrayOutputStream(
+						(int) Math.max(32, this.size));
+				byte[] buf = new byte[8192];
+				int n;
+				while ((n = in.read(buf)) > 0) {
+					out.write(buf, 0, n);
+				}
+				byte[] contents = out.toByteArray();
+				if (key != null)
+					BlobCache.getInstance().put(key, contents);
+				return contents;
+			} finally {
+				in.close();
+			}
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Opens the stored contents in the object store of the current directory
+	 */
+	private InputStream openContents() throws Exception {
+		return ObjectStore.current().open(this.storedFileName, this.compressed);
+	}
 
-			// Copy the original file's timestamp
-			this.timestamp = new Date(srcFile.lastModified());
+	/**
+	 * Hash, compress and store the contents of the original file in the
+	 * object store of the repository in repoLoc. Contents that are already
+	 * stored are not written again.
+	 */
+	public boolean storeFile(String repoLoc) {
+		try {
+			File srcFile = new File(this.originalFileName);
+			// Remember the original file's timestamp and size
+			Date modified = new Date(srcFile.lastModified());
+			long length = srcFile.length();
+			String hash = new ObjectStore(repoLoc + "/.gitlet").store(srcFile);
+			this.contentHash = hash;
+			this.storedFileName = ObjectStore.storedFileName(hash);
+			this.compressed = true;
+			this.timestamp = modified;
+			this.size = length;
 		} catch (Exception e) {
 			return false;
 		}
@@ -98,18 +235,44 @@ public class StoredFile implements Serializable {
 	 * Copy the stored file in .gitlet dir to the original file
 	 */
 	public boolean restoreFile() {
-		String currDir = System.getProperty("user.dir");
 		try {
-			File srcFile = new File(currDir + "/.gitlet/" + this.storedFileName);
 			File destFile = new File(this.originalFileName);
-			Files.copy(srcFile.toPath(), destFile.toPath(),
-					StandardCopyOption.REPLACE_EXISTING);
+			if (BlobCache.getInstance().accepts(this.size)) {
+				// Small enough to be served from (and kept in) the cache
+				byte[] contents = readContents();
+				if (contents == null)
+					return false;
+				Files.write(destFile.toPath(), contents);
+			} else {
+				InputStream in = openContents();
+				try {
+					Files.copy(in, destFile.toPath(),
+							StandardCopyOption.REPLACE_EXISTING);
+				} finally {
+					in.close();
+				}
+			}
+			// Give it the committed timestamp, so that it is known to be
+			// unmodified
+			destFile.setLastModified(this.timestamp.getTime());
 		} catch (Exception e) {
 			return false;
 		}
 		return true;
 	}
 
+	/**
+	 * Returns true if the file in the working directory still has the size
+	 * and timestamp this version was stored or restored with, so it does not
+	 * need to be restored again.
+	 */
+	public boolean isUnmodified() {
+		File f = new File(this.originalFileName);
+		return (this.timestamp != null) && f.isFile()
+				&& (f.length() == this.size)
+				&& (f.lastModified() == this.timestamp.getTime());
+	}
+
 	/**
 	 * Returns the position of StoredFile object for the given original file
 	 * name, if it exists
@@ -127,6 +290,18 @@ public class StoredFile implements Serializable {
 		return -1;
 	}
 
+	/**
+	 * Returns true if both are the same committed version of a file, or both
+	 * are null
+	 */
+	public static boolean sameContents(StoredFile first, StoredFile second) {
+		if ((first == null) || (second == null))
+			return first == second;
+		if ((first.contentHash != null) && (second.contentHash != null))
+			return first.contentHash.equals(second.contentHash);
+		return first.getStoredFileName().equals(second.getStoredFileName());
+	}
+
 	/**
 	 * Get the time of the timestamp to find out if a file has been changed
 	 */
@@ -0,0 +1,206 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/**
+ * The saved generations of a repository's CommitTree. Every save writes a
+ * new generation, .gitlet/trees/<n>.ser, and publishes it by renaming a new
+ * .gitlet/CURRENT, which holds n, over the old one. A generation never
+ * changes once written, so readers take no lock: they read CURRENT and then
+ * the generation it names, and see one complete state of the repository
+ * while a writer builds the next one. The last few generations are kept for
+ * readers that are still reading them.
+ *
+ * A generation is forced to disk before it is published, and each rename is
+ * made durable by syncing its directory. After a crash CURRENT may be
+ * missing, unreadable or name a generation that did not reach the disk; the
+ * newest complete generation is then used instead, so the repository is
+ * always readable, at worst without the command that was interrupted.
+ *
+ * The branches are kept apart, in the RefStore, and only written after the
+ * tree they point into. The current branch is read before the tree, so it
+ * names a commit of the generation that is read.
+ *
+ * A repository saved before generations existed has its tree in ctree.ser;
+ * it is read from there until its first save.
+ */
+public class TreeStore {
+	// Name of the pointer to the current generation in .gitlet
+	public static final String CURRENT_NAME = "CURRENT";
+	// Directory under .gitlet that holds the generations
+	public static final String TREES_DIR = "trees";
+	private static final String LEGACY_NAME = "ctree.ser";
+	private static final int KEPT_GENERATIONS = 4;
+	private static final int LOAD_ATTEMPTS = 5;
+
+	private final String gitletDir;
+
+	/**
+	 * Construct the store of the given .gitlet directory
+	 */
+	public TreeStore(String gitletDir) {
+		this.gitletDir = gitletDir;
+	}
+
+	/**
+	 * The store of the repository in the current directory
+	 */
+	public static TreeStore current() {
+		return new TreeStore(System.getProperty("user.dir") + "/.gitlet");
+	}
+
+	/**
+	 * Returns the number of the published generation, or 0 if none has been
+	 * published yet. If CURRENT does not name a generation on disk, the
+	 * newest generation on disk is the published one.
+	 */
+	public long currentGeneration() {
+		try {
+			byte[] b = Files.readAllBytes(new File(gitletDir, CURRENT_NAME)
+					.toPath());
+			long generation = Long.parseLong(new String(b,
+					StandardCharsets.UTF_8).trim());
+			if (generationFile(generation).isFile()) {
+				return generation;
+			}
+		} catch (Exception e) {
+			// Missing or unreadable. Recover below.
+		}
+		return latestGeneration();
+	}
+
+	/**
+	 * Loads the published generation of the tree. If a writer publishes a
+	 * newer one and the one read was removed meanwhile, the newer one is
+	 * read. If the published one cannot be read, the newest older one that
+	 * can is loaded in its place. Returns null, after printing why, if there
+	 * is no tree.
+	 */
+	public CommitTree load() {
+		RefStore refs = new RefStore(gitletDir);
+		if (refs.getHead() != null) {
+			refs.resolve(refs.getHead());
+		}
+		for (int attempt = 1;; ++attempt) {
+			long generation = currentGeneration();
+			File f = (generation == 0) ? new File(gitletDir, LEGACY_NAME)
+					: generationFile(generation);
+			CommitTree ctree = read(f);
+			if (ctree != null) {
+				ctree.setGeneration(generation);
+				ctree.setRefs(refs);
+				ctree.setLocation(gitletDir);
+				return ctree;
+			}
+			if (!f.isFile() && (attempt < LOAD_ATTEMPTS)) {
+				continue; // Replaced while we looked. Read the new one.
+			}
+			for (long older = generation - 1; older > 0; --older) {
+				ctree = read(generationFile(older));
+				if (ctree != null) {
+					System.out.println("Recovered the repository from generation "
+							+ older + ".");
+					// The next save replaces the unreadable generation
+					ctree.setGeneration(generation);
+					ctree.setRefs(refs);
+					ctree.setLocation(gitletDir);
+					ctree.recoverRefs();
+					return ctree;
+				}
+			}
+			System.out.println("Could not read CommitTree to file: "
+					+ f.getPath());
+			return null;
+		}
+	}
+
+	/**
+	 * Writes the tree as a new generation and publishes it, provided that the
+	 * published generation is still the one the tree was loaded from. Returns
+	 * false, after printing why, if another process published first or the
+	 * tree could not be written. Must be called holding the repository lock.
+	 */
+	public boolean publish(CommitTree ctree) {
+		long published = currentGeneration();
+		if (published != ctree.getGeneration()) {
+			System.out.println("The repository was changed by another process."
+					+ " Nothing was saved.");
+			return false;
+		}
+		long generation = published + 1;
+		File dir = new File(gitletDir, TREES_DIR);
+		try {
+			ObjectStore.syncPending(); // The blobs the tree refers to
+			dir.mkdirs();
+			AtomicFile.deleteLeftovers(dir);
+			AtomicFile.deleteLeftovers(new File(gitletDir));
+			new ObjectStore(gitletDir).deleteLeftovers();
+			ByteArrayOutputStream buf = new ByteArrayOutputStream();
+			ObjectOutputStream out = new ObjectOutputStream(buf);
+			out.writeObject(ctree);
+			out.close();
+			AtomicFile.write(generationFile(generation), buf.toByteArray(),
+					true);
+			AtomicFile.syncDirectory(dir);
+			// A CURRENT lost in a crash is recovered from the generations
+			AtomicFile.write(new File(gitletDir, CURRENT_NAME), (generation
+					+ "\n").getBytes(StandardCharsets.UTF_8), false);
+			AtomicFile.syncDirectory(new File(gitletDir));
+		} catch (IOException e) {
+			System.out.println("Could not write CommitTree to file: "
+					+ generationFile(generation).getPath());
+			return false;
+		}
+		ctree.setGeneration(generation);
+		// Old generations are no longer needed, once readers are done
+		generationFile(generation - KEPT_GENERATIONS).delete();
+		new File(gitletDir, LEGACY_NAME).delete();
+		return true;
+	}
+
+	/**
+	 * Deserializes a tree. Returns null if the file is missing or incomplete.
+	 */
+	private static CommitTree read(File f) {
+		try {
+			ObjectInputStream in = new ObjectInputStream(new FileInputStream(
+					f));
+			try {
+				return (CommitTree) in.readObject();
+			} finally {
+				in.close();
+			}
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the newest generation on disk, 0 if there is none
+	 */
+	private long latestGeneration() {
+		long latest = 0;
+		String[] names = new File(gitletDir, TREES_DIR).list();
+		if (names == null)
+			return latest;
+		for (String name : names) {
+			if (name.matches("[0-9]+\\.ser")) {
+				latest = Math.max(latest, Long.parseLong(name.substring(0,
+						name.length() - 4)));
+			}
+		}
+		return latest;
+	}
+
+	/**
+	 * The file of the given generation
+	 */
+	private File generationFile(long generation) {
+		return new File(gitletDir + "/" + TREES_DIR, generation + ".ser");
+	}
+}
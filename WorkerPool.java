@@ -0,0 +1,59 @@
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A fixed size pool of worker threads with a bounded work queue. When the
+ * queue is full the submitting thread runs the task itself, so the number of
+ * tasks held in memory never grows beyond a few per worker.
+ */
+public class WorkerPool {
+	// Tasks allowed to wait in the queue for every worker thread
+	private static final int QUEUED_PER_WORKER = 4;
+
+	private final ThreadPoolExecutor executor;
+
+	/**
+	 * Construct a pool with one worker per available processor
+	 */
+	public WorkerPool() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Construct a pool with the given number of workers
+	 */
+	public WorkerPool(int workers) {
+		workers = Math.max(1, workers);
+		ThreadFactory daemonFactory = new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "gitlet-worker");
+				t.setDaemon(true); // Never keep the JVM alive
+				return t;
+			}
+		};
+		this.executor = new ThreadPoolExecutor(workers, workers, 0L,
+				TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(
+						workers * QUEUED_PER_WORKER), daemonFactory,
+				new ThreadPoolExecutor.CallerRunsPolicy());
+	}
+
+	/**
+	 * Submit a task to the pool. Blocks (by running the task) if the queue is
+	 * full.
+	 */
+	public <T> Future<T> submit(Callable<T> task) {
+		return this.executor.submit(task);
+	}
+
+	/**
+	 * Stops the workers once the submitted tasks are done
+	 */
+	public void shutdown() {
+		this.executor.shutdown();
+	}
+}